@@ -0,0 +1,33 @@
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+// deadline is in System.nanoTime() units. Entry may be rescheduled only while it's out of the queue
+class ExpiryEntry implements Delayed {
+    ExpiryEntry(InstanceInfo instance, long deadline) {
+        this.instance = instance;
+        this.deadline = deadline;
+    }
+
+    InstanceInfo getInstance() {
+        return instance;
+    }
+
+    void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+        if (o instanceof ExpiryEntry)
+            return Long.compare(deadline - ((ExpiryEntry) o).deadline, 0);
+        return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+    }
+
+    private InstanceInfo instance;
+    private long deadline;
+}
@@ -0,0 +1,170 @@
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.TimeUnit;
+
+// Known instances of the group. Keep alive refreshes are lock free, joins and leaves are
+// serialized to give each of them its own version and notify listeners in version order.
+// Instance expires after KeepAliveRate.EXPIRY_FACTOR intervals advertised in its last keep alive.
+// Reception statistics of every instance are collected from sequence numbers of keep alives
+class GroupMembership {
+
+    void addListener(MembershipListener listener) {
+        synchronized (changeLock) {
+            MembershipListener[] newListeners = Arrays.copyOf(listeners, listeners.length + 1);
+            newListeners[listeners.length] = listener;
+            listeners = newListeners;
+        }
+    }
+
+    void removeListener(MembershipListener listener) {
+        synchronized (changeLock) {
+            listeners = Arrays.stream(listeners)
+                    .filter(l -> l != listener)
+                    .toArray(MembershipListener[]::new);
+        }
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    int size() {
+        return instanceInfoMap.size();
+    }
+
+    // snapshot is rebuilt only on first request after membership change
+    MembershipSnapshot snapshot() {
+        MembershipSnapshot current = snapshot;
+        if (current.getVersion() == version)
+            return current;
+
+        synchronized (changeLock) {
+            if (snapshot.getVersion() != version) {
+                snapshot = new MembershipSnapshot(version, new ArrayList<>(instanceInfoMap.keySet()));
+            }
+            return snapshot;
+        }
+    }
+
+    // returns null if instance isn't a member anymore
+    PeerStats.Sample stats(InstanceInfo inst) {
+        return stats.query(inst, System.nanoTime());
+    }
+
+    // parses message in place and updates sender's last keep alive time. Objects are created
+    // only when a new instance joins, probe is caller's reusable key for the lookup
+    void handleKeepAlive(ByteBuffer msg, InetAddress sender, InstanceInfo probe) {
+        if (!KeepAliveCodec.isValid(msg))
+            return; // ignore invalid message
+
+        long now = System.nanoTime();
+        int seq = KeepAliveCodec.getSeq(msg);
+        int interval = KeepAliveCodec.getInterval(msg);
+        long expiryTimeout = TimeUnit.MILLISECONDS.toNanos(interval) * KeepAliveRate.EXPIRY_FACTOR;
+        InstanceInfo inst = instanceInfoMap.get(probe.set(sender, KeepAliveCodec.getId(msg)));
+        if (null != inst) {
+            inst.setLastKeepAlive(now, expiryTimeout); // expiry queue isn't touched here
+            if (inst != instanceInfoMap.get(probe))
+                inst = null; // removed by expire() which hasn't seen the refresh, so it joins again
+        }
+        if (null != inst) {
+            stats.record(inst, seq, interval, now);
+            long currentVersion = version;
+            for (MembershipListener listener : listeners) {
+                listener.onRefresh(inst, currentVersion);
+            }
+            return;
+        }
+
+        inst = new InstanceInfo(sender, probe.getId());
+        inst.setLastKeepAlive(now, expiryTimeout);
+        synchronized (changeLock) {
+            if (null != instanceInfoMap.putIfAbsent(inst, inst))
+                return; // joined by another thread
+
+            stats.register(inst);
+            stats.record(inst, seq, interval, now);
+            expiryQueue.add(new ExpiryEntry(inst, now + expiryTimeout));
+            long newVersion = ++version;
+            for (MembershipListener listener : listeners) {
+                listener.onJoin(inst, newVersion);
+            }
+        }
+    }
+
+    // blocks until the earliest scheduled deadline comes
+    ExpiryEntry takeDue() throws InterruptedException {
+        return expiryQueue.take();
+    }
+
+    // returns null if no deadline has come yet
+    ExpiryEntry pollDue() {
+        return expiryQueue.poll();
+    }
+
+    // time left to the earliest scheduled deadline, Long.MAX_VALUE if there are no instances
+    long nextDeadlineDelay(TimeUnit unit) {
+        ExpiryEntry next = expiryQueue.peek();
+        return (null == next) ? Long.MAX_VALUE : next.getDelay(unit);
+    }
+
+    // processes given due entry and all other due ones. Instances refreshed since
+    // scheduling are put back with their actual deadline, the rest are removed.
+    // Refreshes don't lock, so the deadline is checked again after the removal: either this check
+    // sees a concurrent refresh and the instance is put back, or the refresh sees the removal
+    void expire(ExpiryEntry entry) {
+        for (; null != entry; entry = expiryQueue.poll()) {
+            InstanceInfo inst = entry.getInstance();
+            if (!isExpired(inst)) {
+                reschedule(entry);
+                continue;
+            }
+
+            synchronized (changeLock) {
+                if (!isExpired(inst)) {
+                    reschedule(entry);
+                    continue;
+                }
+                if (null == instanceInfoMap.remove(inst))
+                    continue;
+                if (!isExpired(inst)) {
+                    instanceInfoMap.put(inst, inst);
+                    reschedule(entry);
+                    continue;
+                }
+                stats.unregister(inst);
+
+                long newVersion = ++version;
+                for (MembershipListener listener : listeners) {
+                    listener.onLeave(inst, newVersion);
+                }
+            }
+        }
+    }
+
+    private static boolean isExpired(InstanceInfo inst) {
+        return inst.getExpiryDeadline() - System.nanoTime() <= 0;
+    }
+
+    private void reschedule(ExpiryEntry entry) {
+        entry.setDeadline(entry.getInstance().getExpiryDeadline());
+        expiryQueue.add(entry);
+    }
+
+    // instances are mapped to themselves to be found by reusable probe without allocations
+    private final ConcurrentHashMap<InstanceInfo, InstanceInfo> instanceInfoMap = new ConcurrentHashMap<>();
+    // one entry per known instance, ordered by the time it has to be checked next
+    private final DelayQueue<ExpiryEntry> expiryQueue = new DelayQueue<>();
+    private final PeerStats stats = new PeerStats();
+
+    // version and listeners are changed only while holding the lock
+    private final Object changeLock = new Object();
+    private volatile long version = 0;
+    private volatile MembershipListener[] listeners = new MembershipListener[0];
+    private volatile MembershipSnapshot snapshot = new MembershipSnapshot(0, Collections.emptyList());
+}
@@ -0,0 +1,71 @@
+import java.net.InetAddress;
+
+class InstanceInfo {
+    InstanceInfo(InetAddress address, long id) {
+        this.address = address;
+        this.id = id;
+    }
+
+    // reuses the object as a lookup key, never call it for an object stored in the map
+    InstanceInfo set(InetAddress address, long id) {
+        this.address = address;
+        this.id = id;
+        return this;
+    }
+
+    InetAddress getAddress() {
+        return address;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    // in System.nanoTime() units
+    long getLastKeepAlive() {
+        return lastKeepAlive;
+    }
+
+    long getExpiryDeadline() {
+        return lastKeepAlive + expiryTimeout;
+    }
+
+    void setLastKeepAlive(long lastKeepAlive, long expiryTimeout) {
+        this.expiryTimeout = expiryTimeout;
+        this.lastKeepAlive = lastKeepAlive;
+    }
+
+    // index in PeerStats arrays, -1 if not registered there
+    int getStatsSlot() {
+        return statsSlot;
+    }
+
+    void setStatsSlot(int statsSlot) {
+        this.statsSlot = statsSlot;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (null == o || o.getClass() != getClass()) return false;
+
+        InstanceInfo inst = (InstanceInfo) o;
+        if ((address != null) ? !address.equals(inst.address) : inst.address != null) return false;
+        if (id != inst.id) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = (int) (id ^ (id >>> 32));
+        result = 31 * result + (address != null ? address.hashCode() : 0);
+        return result;
+    }
+
+    private InetAddress address;
+    private long id;
+    private volatile long expiryTimeout;
+    private volatile long lastKeepAlive;
+    private int statsSlot = -1;
+}
@@ -0,0 +1,70 @@
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+// Measures keep alive encoding, parsing, membership update and listener notification
+// in a steady state group.
+// Allocation is taken from per-thread allocation counters of HotSpot, summed over all threads as the
+// benchmark is the only one allocating, so run it as:
+//   java KeepAliveBenchmark [peers] [packets]
+// Expected result is 0 bytes per packet
+public class KeepAliveBenchmark {
+    private static final int DEFAULT_PEERS = 1000;
+    private static final long DEFAULT_PACKETS = 10_000_000;
+
+    public static void main(String[] args) throws Exception {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PEERS;
+        long packets = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_PACKETS;
+
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        InetAddress sender = InetAddress.getLoopbackAddress();
+        ByteBuffer msg = ByteBuffer.allocate(KeepAliveCodec.MESSAGE_LEN);
+        InstanceInfo probe = new InstanceInfo(null, 0);
+        GroupMembership membership = new GroupMembership();
+        long[] events = new long[1];
+        membership.addListener(new MembershipListener() {
+            @Override
+            public void onJoin(InstanceInfo instance, long version) {}
+
+            @Override
+            public void onLeave(InstanceInfo instance, long version) {}
+
+            @Override
+            public void onRefresh(InstanceInfo instance, long version) {
+                events[0]++;
+            }
+        });
+
+        run(membership, msg, sender, probe, peers, packets); // join peers and warm up
+
+        long allocatedBefore = getAllocatedBytes(threadBean);
+        long start = System.nanoTime();
+        run(membership, msg, sender, probe, peers, packets);
+        long elapsed = System.nanoTime() - start;
+        long allocated = getAllocatedBytes(threadBean) - allocatedBefore;
+
+        System.out.println("Peers: " + peers + ", packets: " + packets + ", refresh events: " + events[0]);
+        System.out.printf("Time per packet: %.1f ns%n", (double) elapsed / packets);
+        System.out.printf("Allocated per packet: %.4f bytes (%d bytes total)%n",
+                (double) allocated / packets, allocated);
+    }
+
+    // by live threads, -1 is returned for the ones which have terminated
+    private static long getAllocatedBytes(com.sun.management.ThreadMXBean threadBean) {
+        long allocated = 0;
+        for (long bytes : threadBean.getThreadAllocatedBytes(threadBean.getAllThreadIds())) {
+            allocated += Math.max(bytes, 0);
+        }
+        return allocated;
+    }
+
+    private static void run(GroupMembership membership, ByteBuffer msg, InetAddress sender, InstanceInfo probe,
+                            int peers, long packets) {
+        for (long i = 0; i < packets; i++) {
+            KeepAliveCodec.encode(msg, i % peers, (int) (i / peers), KeepAliveCodec.DEFAULT_INTERVAL);
+            membership.handleKeepAlive(msg, sender, probe);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+import java.nio.ByteBuffer;
+
+// Binary keep alive message, all values are big-endian:
+//   magic   (int)   - KEEP_ALIVE_MAGIC
+//   version (short) - format version, newer versions only append fields
+//   flags   (short) - reserved, zero
+//   id      (long)  - sender id
+//   seq     (int)   - sequence number, incremented with each sent message
+//   since version 2:
+//   interval (int)  - time in milliseconds until the sender's next message
+// All methods read and write buffer in place using absolute offsets from its position,
+// so neither encoding nor decoding creates any objects
+final class KeepAliveCodec {
+    static final int KEEP_ALIVE_MAGIC = 0x4B414C56; // "KALV"
+    static final short VERSION = 2;
+    // interval of senders not advertising it
+    static final int DEFAULT_INTERVAL = 1000;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = MAGIC_OFFSET + Integer.BYTES;
+    private static final int FLAGS_OFFSET = VERSION_OFFSET + Short.BYTES;
+    private static final int ID_OFFSET = FLAGS_OFFSET + Short.BYTES;
+    private static final int SEQ_OFFSET = ID_OFFSET + Long.BYTES;
+    private static final int INTERVAL_OFFSET = SEQ_OFFSET + Integer.BYTES;
+
+    private static final int V1_MESSAGE_LEN = INTERVAL_OFFSET;
+    static final int MESSAGE_LEN = INTERVAL_OFFSET + Integer.BYTES;
+
+    private KeepAliveCodec() {}
+
+    // writes message to the beginning of buffer and prepares it for sending
+    static void encode(ByteBuffer buffer, long id, int seq, int interval) {
+        buffer.clear();
+        buffer.putInt(MAGIC_OFFSET, KEEP_ALIVE_MAGIC);
+        buffer.putShort(VERSION_OFFSET, VERSION);
+        buffer.putShort(FLAGS_OFFSET, (short) 0);
+        buffer.putLong(ID_OFFSET, id);
+        buffer.putInt(SEQ_OFFSET, seq);
+        buffer.putInt(INTERVAL_OFFSET, interval);
+        buffer.limit(MESSAGE_LEN);
+    }
+
+    // checks whether remaining bytes of buffer are a keep alive message of version 1 or later
+    static boolean isValid(ByteBuffer msg) {
+        return msg.remaining() >= V1_MESSAGE_LEN
+                && msg.getInt(msg.position() + MAGIC_OFFSET) == KEEP_ALIVE_MAGIC
+                && msg.getShort(msg.position() + VERSION_OFFSET) >= 1;
+    }
+
+    static long getId(ByteBuffer msg) {
+        return msg.getLong(msg.position() + ID_OFFSET);
+    }
+
+    static int getSeq(ByteBuffer msg) {
+        return msg.getInt(msg.position() + SEQ_OFFSET);
+    }
+
+    // in milliseconds, DEFAULT_INTERVAL if not advertised or invalid
+    static int getInterval(ByteBuffer msg) {
+        if (msg.getShort(msg.position() + VERSION_OFFSET) < 2 || msg.remaining() < MESSAGE_LEN)
+            return DEFAULT_INTERVAL;
+        int interval = msg.getInt(msg.position() + INTERVAL_OFFSET);
+        return (interval > 0) ? interval : DEFAULT_INTERVAL;
+    }
+}
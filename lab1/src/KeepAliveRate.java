@@ -0,0 +1,21 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+// Interval between own keep alives chosen so that the whole group sends about GROUP_PACKET_RATE
+// messages per second: each of groupSize members sends once in groupSize / GROUP_PACKET_RATE
+// seconds, but not more often than once in MIN_INTERVAL. Interval is randomized in
+// [0.5, 1.5] of that value to keep members from synchronizing. Receivers expire an instance
+// after EXPIRY_FACTOR intervals advertised in its last keep alive
+final class KeepAliveRate {
+    static final int MIN_INTERVAL = 1000; // in milliseconds
+    static final int GROUP_PACKET_RATE = 10; // messages per second from the whole group
+    static final int EXPIRY_FACTOR = 3;
+
+    private KeepAliveRate() {}
+
+    // in milliseconds, group size includes this instance
+    static int nextInterval(int groupSize) {
+        long interval = Math.max(MIN_INTERVAL, groupSize * 1000L / GROUP_PACKET_RATE);
+        long randomized = interval / 2 + ThreadLocalRandom.current().nextLong(interval + 1);
+        return (int) Math.min(Integer.MAX_VALUE, randomized);
+    }
+}
@@ -0,0 +1,74 @@
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+// Discrete event simulation of keep alive traffic of a group whose members choose their intervals
+// with KeepAliveRate. Members join at random moments during JOIN_PERIOD, then packet rate of the
+// whole group is measured for MEASURE_INTERVALS steady state intervals. Multicast delivery is
+// lossless and reaches every member at once, so all of them share one view of the group: sender
+// is known until EXPIRY_FACTOR intervals advertised in its last message pass.
+//   java KeepAliveSimulation [group sizes...]
+public class KeepAliveSimulation {
+    private static final int[] DEFAULT_SIZES = {10, 50, 100, 500, 1000, 2000, 5000};
+    private static final long JOIN_PERIOD = 10_000; // in milliseconds
+    private static final int MEASURE_INTERVALS = 5;
+
+    public static void main(String[] args) {
+        int[] sizes = (args.length > 0)
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : DEFAULT_SIZES;
+
+        System.out.println("members | steady interval, s | group packets/s | peak packets/s while joining");
+        for (int size : sizes) {
+            simulate(size);
+        }
+    }
+
+    private static void simulate(int members) {
+        long steadyInterval = Math.max(KeepAliveRate.MIN_INTERVAL,
+                members * 1000L / KeepAliveRate.GROUP_PACKET_RATE);
+        long measureStart = JOIN_PERIOD + steadyInterval * KeepAliveRate.EXPIRY_FACTOR * 2;
+        long end = measureStart + steadyInterval * MEASURE_INTERVALS;
+
+        long[] deadlines = new long[members]; // member is known to the group till its deadline
+        Arrays.fill(deadlines, Long.MIN_VALUE);
+        int[] perSecond = new int[(int) (end / 1000) + 1];
+        long measured = 0;
+
+        // events are {time, member}, each event is a keep alive sent by member
+        PriorityQueue<long[]> events = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+        for (int i = 0; i < members; i++) {
+            events.add(new long[]{(long) (Math.random() * JOIN_PERIOD), i});
+        }
+
+        while (!events.isEmpty() && events.peek()[0] < end) {
+            long[] event = events.poll();
+            long now = event[0];
+            int member = (int) event[1];
+
+            int known = 0;
+            for (long deadline : deadlines) {
+                if (deadline > now)
+                    known++;
+            }
+            if (deadlines[member] <= now)
+                known++; // the member counts itself, it receives own messages
+
+            int interval = KeepAliveRate.nextInterval(known);
+            deadlines[member] = now + (long) interval * KeepAliveRate.EXPIRY_FACTOR;
+
+            perSecond[(int) (now / 1000)]++;
+            if (now >= measureStart)
+                measured++;
+
+            event[0] = now + interval;
+            events.add(event);
+        }
+
+        int peak = 0;
+        for (int i = 0; i < measureStart / 1000; i++) {
+            peak = Math.max(peak, perSecond[i]);
+        }
+        System.out.printf("%7d | %18.1f | %15.2f | %d%n", members, steadyInterval / 1000.0,
+                measured * 1000.0 / (end - measureStart), peak);
+    }
+}
@@ -1,42 +1,73 @@
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.lang.management.ManagementFactory;
 import java.net.*;
 import java.nio.ByteBuffer;
-import java.nio.charset.StandardCharsets;
-import java.time.Clock;
-import java.time.Duration;
-import java.time.Instant;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
 
 public class Main {
     private static final int port = 6787;
     private static final int BUF_SIZE = 100;
-    private static final int UPDATE_INTERVAL = 1000; // in millisecond
-    private static final String KEEP_ALIVE_STRING = "keep_alive";
-    private static final int KEEP_ALIVE_MSG_LEN =
-            KEEP_ALIVE_STRING.getBytes(StandardCharsets.UTF_8).length + Long.BYTES;
-    private static final Clock clock = Clock.systemUTC();
+    private static final String NIO_MODE = "nio";
+    private static final String LIST_COMMAND = "list";
+    private static final String STATS_COMMAND = "stats";
+    private static final String EXIT_COMMAND = "exit";
+    private static final long INPUT_POLL_INTERVAL = 100; // in ms, input can't be registered in selector
 
-    private static ConcurrentHashMap<InstanceInfo, Instant> instanceInfoMap = new ConcurrentHashMap<>();
+    private static final GroupMembership membership = new GroupMembership();
 
     private static void printList() {
-        System.out.println("Joined copies:");
-        if (0 == instanceInfoMap.size()) {
+        MembershipSnapshot snapshot = membership.snapshot();
+        System.out.println("Joined copies (version " + snapshot.getVersion() + "):");
+        if (0 == snapshot.size()) {
             System.out.println("(none)");
             return;
         }
-        for (InstanceInfo inst : instanceInfoMap.keySet()) {
+        for (InstanceInfo inst : snapshot.getInstances()) {
             System.out.println(inst.getAddress().toString() + " (id " + inst.getId() + ")");
         }
     }
 
+    private static void printStats() {
+        System.out.println("Keep alive statistics:");
+        for (InstanceInfo inst : membership.snapshot().getInstances()) {
+            PeerStats.Sample sample = membership.stats(inst);
+            if (null == sample)
+                continue; // left after snapshot was taken
+
+            System.out.printf("%s (id %d): received %d, lost %d (%.1f%%), jitter %.1f ms, last seen %d ms ago%n",
+                    inst.getAddress(), inst.getId(), sample.getReceived(), sample.getLost(),
+                    sample.getLossRate() * 100, sample.getJitterMillis(), sample.getLastSeenMillis());
+        }
+    }
+
+    // prints only the change, whole list is printed on "list" command
+    private static final MembershipListener consoleListener = new MembershipListener() {
+        @Override
+        public void onJoin(InstanceInfo instance, long version) {
+            System.out.println("Joined " + instance.getAddress() + " (id " + instance.getId() + "), "
+                    + membership.size() + " copies");
+        }
+
+        @Override
+        public void onLeave(InstanceInfo instance, long version) {
+            System.out.println("Left " + instance.getAddress() + " (id " + instance.getId() + "), "
+                    + membership.size() + " copies");
+        }
+    };
+
     public static void main(String[] args) {
         if (0 == args.length) {
             System.err.println("You need to specify multicast IP address of the group");
             return;
         }
+        boolean nioMode = args.length > 1 && args[1].equals(NIO_MODE);
 
         // fetch InetAddr from cmd arg
         InetAddress groupAddr;
@@ -53,15 +84,22 @@ public class Main {
             return;
         }
 
+        // process ID. Using as unique on local machine
+        long pid = ProcessHandle.current().pid();
+
+        membership.addListener(consoleListener);
+
+        if (nioMode) {
+            runEventLoop(groupAddr, pid);
+            return;
+        }
+
         // create multicast socket
         try {
             MulticastSocket sock = new MulticastSocket(port);
             sock.joinGroup(groupAddr);
 
-            // process ID. Using as unique on local machine
-            long pid = ProcessHandle.current().pid();
-
-            Thread inputThread = new Thread(() -> checkInput(sock, groupAddr));
+            Thread inputThread = new Thread(Main::checkInput);
             Thread sendThread = new Thread(() -> sendKeepAlive(sock, groupAddr, pid));
             Thread recvThread = new Thread(() -> readGroupMessages(sock));
             Thread checkThread = new Thread(() -> checkKeepAlive(sock));
@@ -80,13 +118,112 @@ public class Main {
 
             sock.close();
             sendThread.interrupt(); // to don't wait until sending thread awakes
+            checkThread.interrupt(); // the same for checking thread waiting for the next deadline
 
         } catch (IOException e) {
             System.err.println(e.getMessage());
         }
     }
 
-    private static void checkInput(MulticastSocket sock, InetAddress groupAddr) {
+    // single threaded alternative to the threads above: receiving, sending keep alives, expiring
+    // instances and reading the input are driven by one selector in the main thread
+    private static void runEventLoop(InetAddress groupAddr, long id) {
+        try (Selector selector = Selector.open();
+             DatagramChannel channel = DatagramChannel.open(groupAddr instanceof Inet6Address
+                     ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET)) {
+            NetworkInterface netIf = findMulticastInterface();
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(port));
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, netIf);
+            channel.join(groupAddr, netIf);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+
+            eventLoop(selector, channel, groupAddr, id);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    // returns after "exit" command, channel is closed by the caller
+    private static void eventLoop(Selector selector, DatagramChannel channel, InetAddress groupAddr, long id)
+            throws IOException {
+        InetSocketAddress groupSockAddr = new InetSocketAddress(groupAddr, port);
+        ByteBuffer sendBuf = ByteBuffer.allocate(KeepAliveCodec.MESSAGE_LEN);
+        ByteBuffer recvBuf = ByteBuffer.allocate(BUF_SIZE);
+        InstanceInfo probe = new InstanceInfo(null, 0);
+        ByteArrayOutputStream inputLine = new ByteArrayOutputStream();
+        int seq = 0;
+        long nextSend = System.nanoTime();
+
+        while (true) {
+            long now = System.nanoTime();
+            if (now - nextSend >= 0) {
+                int interval = KeepAliveRate.nextInterval(membership.size());
+                KeepAliveCodec.encode(sendBuf, id, seq++, interval);
+                channel.send(sendBuf, groupSockAddr);
+                nextSend = now + TimeUnit.MILLISECONDS.toNanos(interval);
+            }
+
+            ExpiryEntry due = membership.pollDue();
+            if (null != due) {
+                membership.expire(due);
+            }
+
+            // sleep until next keep alive sending, next instance deadline or next input polling
+            long timeout = Math.min(TimeUnit.NANOSECONDS.toMillis(nextSend - now),
+                    membership.nextDeadlineDelay(TimeUnit.MILLISECONDS));
+            selector.select(Math.max(Math.min(timeout, INPUT_POLL_INTERVAL), 1));
+            selector.selectedKeys().clear();
+
+            SocketAddress sender;
+            while (null != (sender = channel.receive(recvBuf))) {
+                recvBuf.flip();
+                membership.handleKeepAlive(recvBuf, ((InetSocketAddress) sender).getAddress(), probe);
+                recvBuf.clear();
+            }
+
+            if (!pollInput(inputLine))
+                return;
+        }
+    }
+
+    // handles input lines which are available without blocking, the rest of line is kept in inputLine.
+    // Returns false after "exit" command, end of input can't be told from no input here
+    private static boolean pollInput(ByteArrayOutputStream inputLine) throws IOException {
+        for (int available = System.in.available(); available > 0; available--) {
+            int b = System.in.read();
+            if ('\n' != b) {
+                inputLine.write(b);
+                continue;
+            }
+
+            String inputString = inputLine.toString().trim();
+            inputLine.reset();
+            if (!handleCommand(inputString))
+                return false;
+        }
+        return true;
+    }
+
+    // takes first running non-loopback interface supporting multicast, loopback otherwise
+    private static NetworkInterface findMulticastInterface() throws SocketException {
+        NetworkInterface loopback = null;
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        while (interfaces.hasMoreElements()) {
+            NetworkInterface netIf = interfaces.nextElement();
+            if (!netIf.isUp() || !netIf.supportsMulticast())
+                continue;
+            if (!netIf.isLoopback())
+                return netIf;
+            loopback = netIf;
+        }
+        if (null == loopback)
+            throw new SocketException("No network interface supporting multicast found");
+        return loopback;
+    }
+
+    private static void checkInput() {
         BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
         // check input
         String inputString;
@@ -97,12 +234,24 @@ public class Main {
                 System.err.println(e.getMessage());
                 return;
             }
-        } while (inputString != null && !inputString.equals("exit"));
+        } while (inputString != null && handleCommand(inputString));
+    }
+
+    // returns false for "exit" command
+    private static boolean handleCommand(String inputString) {
+        if (LIST_COMMAND.equals(inputString)) {
+            printList();
+        } else if (STATS_COMMAND.equals(inputString)) {
+            printStats();
+        }
+        return !EXIT_COMMAND.equals(inputString);
     }
 
     private static void readGroupMessages(MulticastSocket sock) {
         byte[] buf = new byte[BUF_SIZE];
         DatagramPacket recvDg = new DatagramPacket(buf, BUF_SIZE);
+        ByteBuffer msg = ByteBuffer.wrap(buf);
+        InstanceInfo probe = new InstanceInfo(null, 0);
 
         while (true) {
             try {
@@ -113,63 +262,29 @@ public class Main {
                 return;
             }
 
-            long id = parseGroupInput(recvDg.getData());
-            if (id != -1) {
-                InstanceInfo inst = new InstanceInfo(recvDg.getAddress(), id);
-                if (instanceInfoMap.containsKey(inst)) {
-                    instanceInfoMap.replace(inst, clock.instant()); // update last keep alive time
-                } else {
-                    instanceInfoMap.put(inst, clock.instant()); // add new instance
-                    printList();
-                }
-            }
-            // else ignore invalid message
+            msg.limit(recvDg.getLength());
+            membership.handleKeepAlive(msg, recvDg.getAddress(), probe);
         }
     }
 
+    // sleeps until the earliest scheduled instance deadline comes
     private static void checkKeepAlive(MulticastSocket sock) {
-        while (true) {
-            if (sock.isClosed())
+        while (!sock.isClosed()) {
+            try {
+                membership.expire(membership.takeDue());
+            } catch (InterruptedException e) {
                 return;
-
-            Instant now = clock.instant();
-            boolean anyRemoved = false;
-            for (InstanceInfo info : instanceInfoMap.keySet()) {
-                if (Duration.between(instanceInfoMap.get(info), now).toMillis() > UPDATE_INTERVAL * 3) {
-                    instanceInfoMap.remove(info);
-                    anyRemoved = true;
-                }
-            }
-            if (anyRemoved) {
-                printList();
             }
         }
     }
 
-    // tries to parse argument in following format: "<id>keep_alive"
-    // upon successful parsing returns id value, otherwise -1
-    private static long parseGroupInput(byte[] data) {
-        if (data.length < KEEP_ALIVE_MSG_LEN)
-            return -1;
-
-        ByteBuffer buffer = ByteBuffer.wrap(data, 0, KEEP_ALIVE_MSG_LEN);
-        long id = buffer.getLong();
-
-        byte[] arr = new byte[buffer.remaining()];
-        buffer.get(arr);
-        String msg = new String(arr, StandardCharsets.UTF_8);
-
-        return (msg.equals(KEEP_ALIVE_STRING)) ? id : -1;
-    }
-
     // send keep alive messages to the group
     private static void sendKeepAlive(MulticastSocket sock, InetAddress groupAddr, long id) {
-        ByteBuffer buffer = ByteBuffer.allocate(BUF_SIZE);
-        buffer.putLong(id);
-        buffer.put(KEEP_ALIVE_STRING.getBytes(StandardCharsets.UTF_8));
-
-        DatagramPacket sndDg = new DatagramPacket(buffer.array(), KEEP_ALIVE_MSG_LEN, groupAddr, port);
-        for (; ; ) {
+        ByteBuffer buffer = ByteBuffer.allocate(KeepAliveCodec.MESSAGE_LEN);
+        DatagramPacket sndDg = new DatagramPacket(buffer.array(), KeepAliveCodec.MESSAGE_LEN, groupAddr, port);
+        for (int seq = 0; ; seq++) {
+            int interval = KeepAliveRate.nextInterval(membership.size());
+            KeepAliveCodec.encode(buffer, id, seq, interval);
             try {
                 sock.send(sndDg);
             } catch (IOException e) {
@@ -178,47 +293,10 @@ public class Main {
                 return;
             }
             try {
-                Thread.sleep(UPDATE_INTERVAL);
+                Thread.sleep(interval);
             } catch (InterruptedException e) {
                 return;
             }
         }
     }
 }
-
-class InstanceInfo {
-    InstanceInfo(InetAddress address, long id) {
-        this.address = address;
-        this.id = id;
-    }
-
-    InetAddress getAddress() {
-        return address;
-    }
-
-    long getId() {
-        return id;
-    }
-
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (null == o || o.getClass() != getClass()) return false;
-
-        InstanceInfo inst = (InstanceInfo) o;
-        if ((address != null) ? !address.equals(inst.address) : inst.address != null) return false;
-        if (id != inst.id) return false;
-
-        return true;
-    }
-
-    @Override
-    public int hashCode() {
-        int result = (int) (id ^ (id >>> 32));
-        result = 31 * result + (address != null ? address.hashCode() : 0);
-        return result;
-    }
-
-    private InetAddress address;
-    private long id;
-}
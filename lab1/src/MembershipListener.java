@@ -0,0 +1,12 @@
+// Receives changes of the group. Version is the one of membership after the change, refreshes
+// don't change membership and carry the current version. Methods are called from receiving and
+// checking threads, joins and leaves are delivered one at a time in version order, so
+// implementations have to be fast and mustn't block
+interface MembershipListener {
+    void onJoin(InstanceInfo instance, long version);
+
+    void onLeave(InstanceInfo instance, long version);
+
+    // called on every keep alive of known instance
+    default void onRefresh(InstanceInfo instance, long version) {}
+}
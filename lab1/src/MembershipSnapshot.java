@@ -0,0 +1,26 @@
+import java.util.Collections;
+import java.util.List;
+
+// Immutable list of instances of the group at given membership version. Consumer can take a
+// snapshot once and then keep it up to date with listener events of greater versions
+final class MembershipSnapshot {
+    MembershipSnapshot(long version, List<InstanceInfo> instances) {
+        this.version = version;
+        this.instances = Collections.unmodifiableList(instances);
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    List<InstanceInfo> getInstances() {
+        return instances;
+    }
+
+    int size() {
+        return instances.size();
+    }
+
+    private final long version;
+    private final List<InstanceInfo> instances;
+}
@@ -0,0 +1,72 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Content addressed store of uploaded files. Each distinct content is kept once as
+// ./uploads/.blobs/<sha256> and uploaded names are hard links to blobs (copies where file system
+// has no links). Index of blob hashes with their sizes is read from the directory once and then
+// kept in memory
+final class BlobStore {
+    private static final Path BLOB_DIR = Paths.get("./uploads/.blobs");
+    private static final ConcurrentHashMap<String, Long> index = loadIndex();
+
+    private BlobStore() {}
+
+    static boolean contains(String hash, long size) {
+        Long blobSize = index.get(hash);
+        return null != blobSize && blobSize == size;
+    }
+
+    static Path getPath(String hash) {
+        return BLOB_DIR.resolve(hash);
+    }
+
+    // moves complete file into the store, unless the same content is already there, and gives it the name.
+    // Returns true if the content was there
+    static boolean store(Path partPath, String hash, long size, Path filePath) throws IOException {
+        boolean stored = index.containsKey(hash);
+        if (!stored) {
+            try {
+                Files.move(partPath, BLOB_DIR.resolve(hash));
+            } catch (FileAlreadyExistsException e) {
+                // the same content has just been stored by another upload
+            }
+            index.put(hash, size);
+        }
+        Files.deleteIfExists(partPath);
+        link(hash, filePath);
+        return stored;
+    }
+
+    // creates name for existing blob, FileAlreadyExistsException is thrown if name is taken
+    static void link(String hash, Path filePath) throws IOException {
+        Path blobPath = BLOB_DIR.resolve(hash);
+        try {
+            Files.createLink(filePath, blobPath);
+        } catch (UnsupportedOperationException e) {
+            Files.copy(blobPath, filePath);
+        }
+    }
+
+    private static ConcurrentHashMap<String, Long> loadIndex() {
+        ConcurrentHashMap<String, Long> index = new ConcurrentHashMap<>();
+        try {
+            Files.createDirectories(BLOB_DIR);
+            try (DirectoryStream<Path> blobs = Files.newDirectoryStream(BLOB_DIR)) {
+                for (Path blob : blobs) {
+                    String hash = blob.getFileName().toString();
+                    if (ContentHasher.isValidHash(hash)) {
+                        index.put(hash, Files.size(blob));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to read blob store: " + e.getMessage());
+        }
+        return index;
+    }
+}
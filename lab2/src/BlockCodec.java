@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+// Compressed upload body. File is cut into blocks of BLOCK_SIZE bytes (the last one may be shorter)
+// which are deflated independently, so several blocks may be compressed or decompressed at once
+// while others are sent or written. Each block is sent as a frame, all values are big-endian:
+//   raw length    (int)  - length of block in file
+//   stored length (int)  - length of data following the header
+//   method        (byte) - STORED for blocks deflate can't shrink, DEFLATED otherwise
+//   data
+final class BlockCodec {
+    static final String DEFLATE = "deflate"; // codec name negotiated in file info
+    static final int BLOCK_SIZE = 1024 * 1024;
+    static final int HEADER_LEN = 2 * Integer.BYTES + 1;
+    static final byte STORED = 0;
+    static final byte DEFLATED = 1;
+
+    // file is sent as is if its type is compressed already or samples of it shrink less than by MIN_GAIN
+    private static final Set<String> COMPRESSED_TYPES = new HashSet<>(Arrays.asList(
+            "gz", "tgz", "bz2", "xz", "zst", "lz4", "zip", "jar", "7z", "rar",
+            "jpg", "jpeg", "png", "gif", "webp", "mp3", "mp4", "mkv", "avi", "mov", "pdf"));
+    private static final double MIN_GAIN = 0.1;
+    private static final int SAMPLES = 4;
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    private BlockCodec() {}
+
+    static boolean isWorthCompressing(Path filepath) throws IOException {
+        String filename = filepath.getFileName().toString();
+        int dot = filename.lastIndexOf('.');
+        if (dot >= 0 && COMPRESSED_TYPES.contains(filename.substring(dot + 1).toLowerCase(Locale.ROOT)))
+            return false;
+
+        try (FileChannel fileChannel = FileChannel.open(filepath, READ)) {
+            long size = fileChannel.size();
+            if (0 == size)
+                return false;
+
+            long rawTotal = 0;
+            long storedTotal = 0;
+            for (int i = 0; i < SAMPLES; i++) {
+                long position = size / SAMPLES * i;
+                ByteBuffer frame = encode(fileChannel, position, (int) Math.min(SAMPLE_SIZE, size - position));
+                rawTotal += frame.getInt(0);
+                storedTotal += frame.getInt(Integer.BYTES);
+            }
+            return storedTotal <= rawTotal * (1 - MIN_GAIN);
+        }
+    }
+
+    // reads length bytes of file at position and returns frame ready for sending
+    static ByteBuffer encode(FileChannel fileChannel, long position, int length) throws IOException {
+        ByteBuffer raw = ByteBuffer.allocate(length);
+        while (raw.hasRemaining()) {
+            if (fileChannel.read(raw, position + raw.position()) < 0)
+                throw new IOException("File was truncated during uploading");
+        }
+        raw.flip();
+
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LEN + length);
+        frame.position(HEADER_LEN);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            while (!deflater.finished() && frame.hasRemaining()) {
+                deflater.deflate(frame);
+            }
+
+            byte method = DEFLATED;
+            if (!deflater.finished() || frame.position() >= frame.capacity()) { // doesn't shrink
+                method = STORED;
+                frame.clear();
+                frame.position(HEADER_LEN);
+                frame.put(raw.rewind());
+            }
+            frame.putInt(0, length);
+            frame.putInt(Integer.BYTES, frame.position() - HEADER_LEN);
+            frame.put(2 * Integer.BYTES, method);
+            return frame.flip();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // restores block from data of frame, raw must have exactly raw length of the block remaining
+    static void decode(byte method, ByteBuffer data, ByteBuffer raw) throws IOException {
+        if (STORED == method) {
+            if (data.remaining() != raw.remaining())
+                throw new IOException("Invalid block");
+            raw.put(data);
+            return;
+        }
+        if (DEFLATED != method)
+            throw new IOException("Unknown block method " + method);
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            while (raw.hasRemaining() && !inflater.finished()) {
+                if (0 == inflater.inflate(raw) && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+            }
+            if (raw.hasRemaining() || !inflater.finished())
+                throw new IOException("Invalid block");
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid block", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
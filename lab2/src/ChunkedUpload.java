@@ -0,0 +1,392 @@
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+// File uploaded as fixed size chunks in any order over one or several connections. Chunks are written
+// in place to the part file, which is extended to the file size at once rather than by each write,
+// and is moved to the file name after all of them arrived. Size of file is limited by maxFileSize.
+// Uploads in progress are registered by file name, so a name can be uploaded by one client at a time.
+// Received chunks are checkpointed to the progress marker next to the part file: data is forced
+// to disk first, so marker never claims a chunk that could be lost. Interrupted upload keeps both
+// files and may be resumed later from the chunks the marker lists. Upload in a single stream also
+// checkpoints its received prefix in bytes, so it resumes where it was rather than at a chunk boundary.
+// Received prefix of the file is hashed in background, complete file is checked against the hash
+// client has announced, if any, and is kept in BlobStore under its hash
+class ChunkedUpload {
+    private static final ConcurrentHashMap<String, ChunkedUpload> uploads = new ConcurrentHashMap<>();
+    private static final long CHECKPOINT_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+    private static final String PART_SUFFIX = ".part";
+    private static final String MARKER_SUFFIX = ".progress";
+    private static final String TMP_SUFFIX = ".tmp";
+    static final long DEFAULT_MAX_FILE_SIZE = 1L << 40; // 1 TiB
+
+    private static volatile long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+
+    // name is being uploaded by another connection, which may turn out to be a stale one
+    static class UploadInProgressException extends IOException {
+        UploadInProgressException() {
+            super("Upload is in progress");
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private ChunkedUpload(String name, long size, int chunkSize) {
+        this.name = name;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        filePath = Paths.get("./uploads/" + name);
+        partPath = Paths.get("./uploads/" + name + PART_SUFFIX);
+        markerPath = Paths.get("./uploads/" + name + MARKER_SUFFIX);
+        chunkCount = (int) ((size + chunkSize - 1) / chunkSize);
+    }
+
+    // gives name to stored file of the same content instead of uploading it, the caller has checked that
+    // client has the content. FileAlreadyExistsException is thrown if name is taken
+    static void deduplicate(String name, String hash) throws IOException {
+        if (!isValidName(name))
+            throw new IOException("Invalid file name");
+        if (uploads.containsKey(name))
+            throw new UploadInProgressException();
+
+        try {
+            BlobStore.link(hash, Paths.get("./uploads/" + name));
+        } catch (FileAlreadyExistsException e) {
+            throw new FileAlreadyExistsException("File exists");
+        }
+        UploadMetrics.uploadDeduplicated();
+    }
+
+    // registers upload and opens its part file. If resume is requested and there is a partial upload of
+    // the same size, its received chunks and chunk size are kept, otherwise upload starts from scratch.
+    // Hash announced by client may be null
+    static ChunkedUpload start(String name, long size, int chunkSize, boolean resume, String hash)
+            throws IOException {
+        if (!isValidName(name))
+            throw new IOException("Invalid file name");
+        if (size > maxFileSize)
+            throw new IOException("File is too large, server accepts up to " + maxFileSize + " bytes");
+        if (!isValidChunking(size, chunkSize))
+            throw new IOException("Chunk size is too small for the file");
+
+        ChunkedUpload upload = null;
+        if (resume) {
+            upload = loadProgress(name, size);
+        }
+        if (null == upload) {
+            upload = new ChunkedUpload(name, size, chunkSize);
+        }
+
+        if (Files.exists(upload.filePath)) {
+            throw new FileAlreadyExistsException("File exists");
+        }
+        if (null != uploads.putIfAbsent(name, upload)) {
+            throw new UploadInProgressException();
+        }
+
+        try {
+            if (upload.receivedChunks.isEmpty() && 0 == upload.receivedPrefix) {
+                Files.deleteIfExists(upload.markerPath);
+                upload.fileChannel = FileChannel.open(upload.partPath, CREATE, TRUNCATE_EXISTING, WRITE);
+                if (size > 0) {
+                    upload.fileChannel.write(ByteBuffer.allocate(1), size - 1);
+                }
+            } else {
+                upload.fileChannel = FileChannel.open(upload.partPath, WRITE);
+            }
+            upload.expectedHash = hash;
+            upload.hasher = ContentHasher.start(upload.partPath, size);
+            upload.hasher.advance(upload.getReceivedPrefix());
+        } catch (IOException e) {
+            upload.abort();
+            throw e;
+        }
+        upload.lastCheckpoint = System.nanoTime();
+        upload.startTime = upload.lastCheckpoint;
+        upload.resumedBytes = upload.getReceivedBytes();
+        return upload;
+    }
+
+    // returns null if there is no usable progress of upload of this name and size
+    private static ChunkedUpload loadProgress(String name, long size) {
+        ChunkedUpload upload = new ChunkedUpload(name, size, 1);
+        if (!Files.exists(upload.partPath) || !Files.exists(upload.markerPath))
+            return null;
+
+        try {
+            JSONObject progress = new JSONObject(new String(Files.readAllBytes(upload.markerPath),
+                    StandardCharsets.UTF_8));
+            int chunkSize = progress.getInt("chunk");
+            if (progress.getLong("size") != size || !isValidChunking(size, chunkSize)
+                    || Files.size(upload.partPath) != size)
+                return null;
+
+            upload = new ChunkedUpload(name, size, chunkSize);
+            upload.receivedChunks.or(BitSet.valueOf(Base64.getDecoder().decode(progress.getString("received"))));
+            upload.receivedChunks.clear(upload.chunkCount, Math.max(upload.chunkCount, upload.receivedChunks.length()));
+            upload.receivedPrefix = Math.max(0, Math.min(progress.optLong("prefix", 0), size));
+            return upload;
+        } catch (IOException | JSONException | IllegalArgumentException e) {
+            return null; // corrupted progress, upload starts from scratch
+        }
+    }
+
+    static void setMaxFileSize(long bytes) {
+        maxFileSize = bytes;
+    }
+
+    // chunks are numbered by int
+    private static boolean isValidChunking(long size, int chunkSize) {
+        return chunkSize > 0 && (size + chunkSize - 1) / chunkSize <= Integer.MAX_VALUE;
+    }
+
+    // name of stored file must be a plain file name which isn't hidden like the blob store and isn't
+    // a file of upload in progress
+    static boolean isValidName(String name) {
+        return null != name && !name.isEmpty() && !name.startsWith(".") && !name.contains("/")
+                && !name.contains("\\") && !name.endsWith(PART_SUFFIX) && !name.endsWith(MARKER_SUFFIX)
+                && !name.endsWith(MARKER_SUFFIX + TMP_SUFFIX);
+    }
+
+    // returns path of stored file, null if there is no such file or name doesn't denote one
+    static Path findStored(String name) {
+        if (!isValidName(name))
+            return null;
+        Path path = Paths.get("./uploads/" + name);
+        return Files.isRegularFile(path) ? path : null;
+    }
+
+    static int getActiveCount() {
+        return uploads.size();
+    }
+
+    // returns null if there is no upload with such name in progress
+    static ChunkedUpload find(String name) {
+        return uploads.get(name);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    FileChannel getFileChannel() {
+        return fileChannel;
+    }
+
+    // range must be exactly one chunk, the last one may be shorter
+    boolean isValidRange(long offset, long length) {
+        return offset >= 0 && offset < size && offset % chunkSize == 0
+                && length == Math.min(chunkSize, size - offset);
+    }
+
+    // offset of the first missing byte, data before it has been received
+    synchronized long getReceivedPrefix() {
+        return Math.max(receivedPrefix, Math.min((long) receivedChunks.nextClearBit(0) * chunkSize, size));
+    }
+
+    synchronized void chunkReceived(long offset) throws IOException {
+        if (finished)
+            return; // chunk came through another connection after the upload was suspended
+        long chunk = offset / chunkSize;
+        if (offset < 0 || chunk >= chunkCount)
+            throw new IOException("Chunk is out of file");
+        receivedChunks.set((int) chunk);
+        hasher.advance(getReceivedPrefix());
+        if (System.nanoTime() - lastCheckpoint > CHECKPOINT_INTERVAL) {
+            checkpoint();
+        }
+    }
+
+    // marks first length bytes as received, for uploads in a single stream
+    synchronized void prefixReceived(long length) throws IOException {
+        if (markPrefix(length)) {
+            checkpoint();
+        }
+    }
+
+    // marks first length bytes as received like prefixReceived, but leaves checkpoint to the caller:
+    // returns true if it's due, so that caller can run checkpointConcurrently off its thread
+    synchronized boolean markPrefix(long length) {
+        if (finished)
+            return false;
+        receivedPrefix = Math.max(receivedPrefix, length);
+        int chunks = (length == size) ? chunkCount : (int) (length / chunkSize);
+        for (int i = receivedChunks.nextClearBit(0); i < chunks; i = receivedChunks.nextClearBit(i)) {
+            receivedChunks.set(i);
+        }
+        hasher.advance(getReceivedPrefix());
+        return System.nanoTime() - lastCheckpoint > CHECKPOINT_INTERVAL;
+    }
+
+    // checkpoints progress marked so far without holding the lock while data is forced, so data keeps
+    // being marked meanwhile. Marker is replaced under the lock unless the upload has finished
+    void checkpointConcurrently() throws IOException {
+        JSONObject progress;
+        synchronized (this) {
+            if (finished)
+                return;
+            progress = getProgress();
+            lastCheckpoint = System.nanoTime();
+        }
+        try {
+            fileChannel.force(false); // data marked before the snapshot has been written already
+        } catch (ClosedChannelException e) {
+            return; // upload has finished meanwhile
+        }
+        synchronized (this) {
+            if (!finished) {
+                writeMarker(progress);
+            }
+        }
+    }
+
+    synchronized int missingChunks() {
+        return chunkCount - receivedChunks.cardinality();
+    }
+
+    // total length of received chunks, or of received prefix if it's longer
+    private long getReceivedBytes() {
+        long bytes = (long) receivedChunks.cardinality() * chunkSize;
+        if (chunkCount > 0 && receivedChunks.get(chunkCount - 1)) {
+            bytes -= (long) chunkCount * chunkSize - size; // the last chunk is shorter
+        }
+        return Math.max(bytes, receivedPrefix);
+    }
+
+    // checks hash of complete file and moves it to the store under its name. Name stays registered
+    // until the files are stored or removed, so no other upload of it opens the same part file meanwhile
+    synchronized void commit() throws IOException {
+        finished = true;
+        try {
+            fileChannel.close();
+            String hash = hasher.await();
+            if (null != expectedHash && !expectedHash.equals(hash))
+                throw new IOException("Content hash mismatch");
+            if (BlobStore.store(partPath, hash, size, filePath)) {
+                UploadMetrics.uploadDeduplicated();
+            }
+        } catch (IOException e) {
+            UploadMetrics.uploadFailed();
+            Files.deleteIfExists(partPath);
+            throw e;
+        } finally {
+            try {
+                Files.deleteIfExists(markerPath);
+            } finally {
+                uploads.remove(name, this);
+            }
+        }
+        UploadMetrics.uploadCompleted(System.nanoTime() - startTime, size - resumedBytes);
+    }
+
+    // saves progress and releases the name so that upload may be resumed, returns false if it has been
+    // already finished
+    synchronized boolean suspend() throws IOException {
+        if (finished)
+            return false;
+
+        finished = true;
+        UploadMetrics.uploadAborted();
+        hasher.cancel();
+        try {
+            checkpoint();
+        } finally {
+            try {
+                fileChannel.close();
+            } finally {
+                uploads.remove(name, this);
+            }
+        }
+        return true;
+    }
+
+    // removes upload with its data, returns false if it has been already committed or aborted
+    synchronized boolean abort() throws IOException {
+        if (finished)
+            return false;
+
+        finished = true;
+        UploadMetrics.uploadAborted();
+        try {
+            if (null != hasher) {
+                hasher.cancel();
+            }
+            if (null != fileChannel) {
+                fileChannel.close();
+            }
+            Files.deleteIfExists(partPath);
+            Files.deleteIfExists(markerPath);
+        } finally {
+            uploads.remove(name, this);
+        }
+        return true;
+    }
+
+    // forces received data to disk, then atomically replaces the marker. Lock is held, so no chunk
+    // is marked between forcing and writing
+    private void checkpoint() throws IOException {
+        fileChannel.force(false);
+        writeMarker(getProgress());
+        lastCheckpoint = System.nanoTime();
+    }
+
+    private JSONObject getProgress() {
+        JSONObject progress = new JSONObject();
+        progress.put("size", size);
+        progress.put("chunk", chunkSize);
+        progress.put("received", Base64.getEncoder().encodeToString(receivedChunks.toByteArray()));
+        progress.put("prefix", receivedPrefix);
+        return progress;
+    }
+
+    private void writeMarker(JSONObject progress) throws IOException {
+        Path tmpPath = Paths.get(markerPath + TMP_SUFFIX);
+        Files.write(tmpPath, progress.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmpPath, markerPath, REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    private final String name;
+    private final long size;
+    private final int chunkSize;
+    private final int chunkCount;
+    private final Path filePath;
+    private final Path partPath;
+    private final Path markerPath;
+
+    private FileChannel fileChannel;
+    private ContentHasher hasher;
+    private String expectedHash;
+    private boolean finished = false;
+    private long lastCheckpoint; // in System.nanoTime() units
+    private long startTime; // of this session, in System.nanoTime() units
+    private long resumedBytes; // received before this session
+    private final BitSet receivedChunks = new BitSet();
+    private long receivedPrefix = 0; // in bytes, received by single stream, chunks may cover more
+}
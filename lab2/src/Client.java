@@ -1,29 +1,122 @@
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.io.*;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 public class Client {
-    private static final int BUF_SIZE = 4096;
+    // used only when transferTo is disabled or can't proceed
+    private static final int BUF_SIZE = 1024 * 1024;
+    private static final long DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private static final String NO_SENDFILE_OPTION = "--no-sendfile";
+    private static final String STREAMS_OPTION = "--streams=";
+    private static final String CHUNK_OPTION = "--chunk=";
+    private static final String RESUME_OPTION = "--resume";
+    private static final String HASH_OPTION = "--hash";
+    private static final String COMPRESS_OPTION = "--compress";
+    private static final String JSON_OPTION = "--json";
+    private static final String DOWNLOAD_OPTION = "--download";
+    private static final String RANGE_OPTION = "--range=";
+    private static final String USAGE = "Usage: client filename|directory server-address server-port ["
+            + NO_SENDFILE_OPTION + "] [" + STREAMS_OPTION + "N] [" + CHUNK_OPTION + "BYTES] [" + RESUME_OPTION + "] ["
+            + HASH_OPTION + "] [" + COMPRESS_OPTION + "] [" + JSON_OPTION + "]\n"
+            + "       client stored-filename server-address server-port " + DOWNLOAD_OPTION + " ["
+            + RANGE_OPTION + "FIRST-LAST|FIRST-|-SUFFIX] [" + STREAMS_OPTION + "N] [" + CHUNK_OPTION + "BYTES] ["
+            + JSON_OPTION + "]";
+
+    // downloaded files are saved here under their names, file being downloaded has PART_SUFFIX appended
+    private static final Path DOWNLOAD_DIR = Paths.get("./downloads");
+    private static final String PART_SUFFIX = ".part";
+
+    // replies of server are read through this buffer, it holds the longest message
+    private static final int READ_BUF_SIZE = 2 * Message.MAX_FRAME_LEN;
+
+    // files of directory are sent over one connection, small ones are gathered by BATCH_BUF_SIZE bytes
+    // with their headers and sent by one write
+    private static final int BATCH_BUF_SIZE = 256 * 1024;
+
+    // blocks compressed ahead of the one being sent
+    private static final int MAX_BLOCKS_IN_FLIGHT = 8;
+
+    // upload is retried when server is busy and, if resumed, after lost connection
+    private static final int RETRY_ATTEMPTS = 5;
+    private static final long RESUME_DELAY = 2000;
+    private static final String IN_PROGRESS_ERROR = "ERROR: Upload is in progress";
+
+    // server refused the connection for now, upload may be retried after given delay
+    static class ServerBusyException extends IOException {
+        ServerBusyException(String message, long retryAfter) {
+            super(message);
+            this.retryAfter = retryAfter;
+        }
+
+        // in milliseconds
+        long getRetryAfter() {
+            return retryAfter;
+        }
+
+        private static final long serialVersionUID = 1L;
+        private final long retryAfter;
+    }
+
+    static class Options {
+        boolean useTransferTo = true;
+        // file is split into chunks which are uploaded in parallel if more than one stream is used.
+        // Server may lower both values
+        int streams = 1;
+        long chunkSize = DEFAULT_CHUNK_SIZE;
+        // continue partial upload of the same file kept by the server
+        boolean resume = false;
+        // send SHA-256 of the file, so that server having the same content skips the upload
+        // and checks the received file otherwise
+        boolean hash = false;
+        // compress single stream upload if server supports it, unless file seems incompressible
+        boolean compress = false;
+        // talk legacy protocol of JSON lines instead of binary messages, for servers without them
+        boolean legacy = false;
+        // fetch stored file instead of uploading, in chunks over parallel streams if more than one is used.
+        // Range is the part of file to download, negative values aren't set as in Message
+        boolean download = false;
+        long rangeOffset = -1;
+        long rangeLength = -1;
+    }
 
     public static void main(String[] args) {
         if (args.length < 3) {
-            System.err.println("Usage: client filename server-address server-port");
+            System.err.println(USAGE);
             return;
         }
 
         // validate args
         Path filepath = Paths.get(args[0]);
-        if (!Files.exists(filepath)) {
-            System.err.println("No such file exists");
-            return;
-        }
 
         InetAddress servAddress;
         try {
@@ -45,71 +138,647 @@ public class Client {
             return;
         }
 
-        try (Socket clientSocket = new Socket(servAddress, serverPort);
-             InputStream socketInputStream = clientSocket.getInputStream();
-             OutputStream socketOutputStream = clientSocket.getOutputStream())
-        {
-            BufferedReader socketBufferedReader = new BufferedReader(new InputStreamReader(socketInputStream));
-            PrintWriter socketPrintWriter = new PrintWriter(new OutputStreamWriter(socketOutputStream));
-
-            // send file info
-            JSONObject fileInfo = new JSONObject();
-            fileInfo.put("name", filepath.getFileName());
-            fileInfo.put("size", Files.size(filepath));
-
-            socketPrintWriter.println(fileInfo.toString());
-            socketPrintWriter.flush();
+        Options options = new Options();
+        try {
+            for (int i = 3; i < args.length; i++) {
+                if (args[i].equals(NO_SENDFILE_OPTION)) {
+                    options.useTransferTo = false;
+                } else if (args[i].startsWith(STREAMS_OPTION)) {
+                    options.streams = Integer.parseInt(args[i].substring(STREAMS_OPTION.length()));
+                } else if (args[i].startsWith(CHUNK_OPTION)) {
+                    options.chunkSize = Long.parseLong(args[i].substring(CHUNK_OPTION.length()));
+                } else if (args[i].equals(RESUME_OPTION)) {
+                    options.resume = true;
+                } else if (args[i].equals(HASH_OPTION)) {
+                    options.hash = true;
+                } else if (args[i].equals(COMPRESS_OPTION)) {
+                    options.compress = true;
+                } else if (args[i].equals(JSON_OPTION)) {
+                    options.legacy = true;
+                } else if (args[i].equals(DOWNLOAD_OPTION)) {
+                    options.download = true;
+                } else if (args[i].startsWith(RANGE_OPTION)) {
+                    if (!parseRange(args[i].substring(RANGE_OPTION.length()), options)) {
+                        System.err.println("Invalid range");
+                        return;
+                    }
+                } else {
+                    System.err.println(USAGE);
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        if (options.streams < 1 || options.chunkSize < 1) {
+            System.err.println("Streams number and chunk size must be positive");
+            return;
+        }
+        if (!options.download && !Files.exists(filepath)) {
+            System.err.println("No such file exists");
+            return;
+        }
 
-            // get response
-            JSONObject serverResponse = receiveStatusMessage(socketBufferedReader);
-            if (serverResponse.getString("status").equals("ERROR")) {
-                System.err.println("ERROR: " + serverResponse.getString("details"));
+        // uploads of directory's files which are left after lost connection are retried
+        List<Path> batch = null;
+        int failedFiles = 0;
+        if (Files.isDirectory(filepath)) {
+            try {
+                batch = listFiles(filepath);
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
                 return;
             }
+        }
 
-            // open file
-            InputStream fileInputStream;
+        for (int attempt = 1; ; attempt++) {
+            long delay = RESUME_DELAY;
             try {
-                fileInputStream = Files.newInputStream(filepath);
+                if (options.download) {
+                    download(args[0], new InetSocketAddress(servAddress, serverPort), options);
+                    System.out.println("Successful downloading");
+                    return;
+                }
+                if (null != batch) {
+                    failedFiles += uploadBatch(batch, new InetSocketAddress(servAddress, serverPort), options);
+                    System.out.println((0 == failedFiles) ? "Successful uploading"
+                            : "Unable to upload " + failedFiles + " files");
+                    return;
+                }
+                upload(filepath, new InetSocketAddress(servAddress, serverPort), options);
+                System.out.println("Successful uploading");
+                return;
+            } catch (ServerBusyException e) {
+                System.err.println(e.getMessage());
+                if (attempt == RETRY_ATTEMPTS)
+                    return;
+                delay = e.getRetryAfter();
             } catch (IOException e) {
                 System.err.println(e.getMessage());
+                if (!options.resume || attempt == RETRY_ATTEMPTS || isServerError(e))
+                    return;
+            }
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
                 return;
             }
+            System.err.println("Retrying " + (options.download ? "download" : "upload") + ", attempt " + (attempt + 1)
+                    + " of " + RETRY_ATTEMPTS);
+        }
+    }
+
+    // reads HTTP-like byte range: FIRST-LAST with both bytes included, FIRST- up to the end of file or
+    // -SUFFIX for the last SUFFIX bytes. Returns false if range is invalid
+    private static boolean parseRange(String range, Options options) {
+        int dash = range.indexOf('-');
+        if (dash < 0 || 1 == range.length())
+            return false;
+        String first = range.substring(0, dash);
+        String last = range.substring(dash + 1);
+        if (first.isEmpty()) {
+            options.rangeLength = Long.parseLong(last);
+            return options.rangeLength >= 0;
+        }
+        options.rangeOffset = Long.parseLong(first);
+        if (!last.isEmpty()) {
+            options.rangeLength = Long.parseLong(last) - options.rangeOffset + 1;
+        }
+        return options.rangeOffset >= 0 && (last.isEmpty() || options.rangeLength > 0);
+    }
+
+    // name held by upload in progress isn't final: it may be the stale connection of this client, which
+    // server drops after a while. Servers before BUSY replies for it report it as error
+    private static boolean isServerError(IOException e) {
+        return null != e.getMessage() && e.getMessage().startsWith("ERROR: ")
+                && !e.getMessage().equals(IN_PROGRESS_ERROR);
+    }
 
-            // upload file data
+    // uploads file to the server. Errors reported by server are thrown as IOException with details
+    static void upload(Path filepath, InetSocketAddress serverAddress, Options options) throws IOException {
+        try (SocketChannel clientChannel = SocketChannel.open(serverAddress)) {
+            MessageChannel messages = new MessageChannel(clientChannel,
+                    new ConnectionReader(clientChannel, READ_BUF_SIZE), options.legacy);
+
+            // send file info
+            long size = Files.size(filepath);
+            Message fileInfo = messages.compose(Message.FILE);
+            fileInfo.name = filepath.getFileName().toString();
+            fileInfo.size = size;
+            if (options.streams > 1) {
+                fileInfo.streams = options.streams;
+                fileInfo.chunk = options.chunkSize;
+            }
+            fileInfo.resume = options.resume;
+            if (options.hash) {
+                fileInfo.hash = hashFile(filepath);
+            }
+            if (options.compress && options.streams == 1 && BlockCodec.isWorthCompressing(filepath)) {
+                fileInfo.codec = BlockCodec.DEFLATE;
+            }
+            messages.send(fileInfo);
+
+            // get response
+            Message serverResponse = receiveStatusMessage(messages);
+            if (Message.BUSY == serverResponse.status) {
+                throw new ServerBusyException("BUSY: " + serverResponse.details,
+                        (serverResponse.retry >= 0) ? serverResponse.retry : RESUME_DELAY);
+            }
+            if (Message.ERROR == serverResponse.status) {
+                throw new IOException("ERROR: " + serverResponse.details);
+            }
+            if (serverResponse.skip) { // server already has the content, it asks to prove having it too
+                if (!ContentHasher.isValidHash(serverResponse.hash) || serverResponse.offset < 0
+                        || serverResponse.length < 0) {
+                    throw new IOException("Invalid content challenge received");
+                }
+                Message proof = messages.compose(Message.PROOF);
+                proof.hash = ContentHasher.hashRange(filepath, serverResponse.hash, serverResponse.offset,
+                        serverResponse.length);
+                messages.send(proof);
+                Message result = receiveStatusMessage(messages);
+                if (Message.BUSY == result.status) {
+                    throw new ServerBusyException("BUSY: " + result.details,
+                            (result.retry >= 0) ? result.retry : RESUME_DELAY);
+                }
+                if (Message.SUCCESS != result.status) {
+                    throw new IOException("ERROR: " + result.details);
+                }
+                return;
+            }
 
-            byte[] buffer = new byte[BUF_SIZE];
-            int sndNum;
-            while ((sndNum = fileInputStream.read(buffer, 0, buffer.length)) > 0) {
+            // upload file data. Server not supporting parallel uploads accepts the whole file at once.
+            // Resumed upload skips data the server already has
+            long offset = Math.max(serverResponse.offset, 0);
+            String upload = serverResponse.upload;
+            int streams = serverResponse.streams;
+            long chunkSize = serverResponse.chunk;
+            boolean compressed = BlockCodec.DEFLATE.equals(serverResponse.codec);
+            try (FileChannel fileChannel = FileChannel.open(filepath, READ)) {
                 try {
-                    socketOutputStream.write(buffer, 0, sndNum);
+                    if (null != upload) {
+                        uploadChunks(fileChannel, size, offset, serverAddress, options, upload, streams, chunkSize,
+                                clientChannel, messages);
+                        Message commit = messages.compose(Message.COMMIT);
+                        commit.upload = upload;
+                        messages.send(commit);
+                    } else if (compressed) {
+                        sendBlocks(fileChannel, offset, size - offset, clientChannel);
+                    } else {
+                        sendFileData(fileChannel, offset, size - offset, clientChannel, options.useTransferTo);
+                    }
                 } catch (IOException e) {
-                    System.err.println("Lost connection to the server. Aborting");
-                    return;
+                    if (isServerError(e))
+                        throw e;
+                    throw new IOException("Lost connection to the server. Aborting", e);
                 }
             }
 
-            serverResponse = receiveStatusMessage(socketBufferedReader);
-            if (serverResponse.getString("status").equals("ERROR")) {
-                System.err.println("ERROR: " + serverResponse.getString("details"));
+            serverResponse = receiveStatusMessage(messages);
+            if (Message.SUCCESS != serverResponse.status) {
+                throw new IOException("ERROR: " + serverResponse.details);
+            }
+        }
+    }
+
+    // regular files of directory, subdirectories are skipped
+    private static List<Path> listFiles(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                if (Files.isRegularFile(entry)) {
+                    files.add(entry);
+                }
             }
+        }
+        return files;
+    }
 
-            System.out.println("Successful uploading");
+    // uploads files over one connection without waiting for replies between them.
+    // Acknowledged files are removed from the list. If connection is lost, the rest is uploaded over a new one,
+    // as long as each connection gets some files through.
+    // If server doesn't support batches, files are uploaded one by one. Returns number of files refused by server
+    static int uploadBatch(List<Path> files, InetSocketAddress serverAddress, Options options) throws IOException {
+        AtomicInteger refused = new AtomicInteger();
+        while (true) {
+            Set<Path> acknowledged = ConcurrentHashMap.newKeySet();
+            try (SocketChannel clientChannel = SocketChannel.open(serverAddress)) {
+                MessageChannel messages = new MessageChannel(clientChannel,
+                        new ConnectionReader(clientChannel, READ_BUF_SIZE), options.legacy);
+                messages.send(messages.compose(Message.BATCH));
 
-        } catch (IOException|JSONException e) {
-            System.err.println(e.getMessage());
+                Message serverResponse = receiveStatusMessage(messages);
+                if (Message.BUSY == serverResponse.status) {
+                    throw new ServerBusyException("BUSY: " + serverResponse.details,
+                            (serverResponse.retry >= 0) ? serverResponse.retry : RESUME_DELAY);
+                }
+                if (Message.SUCCESS != serverResponse.status)
+                    break;
+                pipelineBatch(new ArrayList<>(files), clientChannel, messages, acknowledged, refused, options);
+                return refused.get();
+            } catch (ServerBusyException e) {
+                throw e;
+            } catch (IOException e) {
+                if (acknowledged.isEmpty())
+                    throw e;
+                System.err.println(e.getMessage() + ". Reconnecting");
+            } finally {
+                files.removeAll(acknowledged);
+            }
         }
+        return refused.get() + uploadEach(files, serverAddress, options);
     }
 
-    private static JSONObject receiveStatusMessage(BufferedReader in) throws JSONException, IOException {
-        String serverRespStr = in.readLine();
+    // sends files while another thread reads replies, server acknowledges each file by its sequence number.
+    // Refused files are counted
+    private static void pipelineBatch(List<Path> files, SocketChannel channel, MessageChannel messages,
+                                      Set<Path> acknowledged, AtomicInteger refused, Options options)
+            throws IOException {
+        ExecutorService ackReader = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> acks = ackReader.submit(() -> {
+                for (int i = 0; i < files.size(); i++) {
+                    Message ack = receiveStatusMessage(messages);
+                    if (ack.seq < 0 || ack.seq >= files.size())
+                        throw new IOException("Invalid acknowledgement received");
+                    Path filepath = files.get((int) ack.seq);
+                    if (Message.SUCCESS != ack.status) {
+                        System.err.println(filepath.getFileName() + ": ERROR: " + ack.details);
+                        refused.incrementAndGet();
+                    }
+                    acknowledged.add(filepath);
+                }
+                return null;
+            });
 
-        if (null != serverRespStr) {
-            JSONObject servResponse = new JSONObject(serverRespStr);
-            if (servResponse.has("status") && servResponse.has("details")) {
-                return servResponse;
+            try {
+                sendBatch(files, channel, messages, options);
+                channel.shutdownOutput();
+            } catch (IOException e) {
+                throw new IOException("Lost connection to the server", e);
+            }
+            try {
+                acks.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw new IOException("Lost connection to the server", e.getCause());
+                throw new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
             }
+        } finally {
+            ackReader.shutdownNow();
         }
-        throw new JSONException("Invalid JSON received");
+    }
+
+    // sends header and data of each file. Small files are gathered with their headers in the buffer,
+    // larger ones are sent straight from file after the buffer
+    private static void sendBatch(List<Path> files, SocketChannel channel, MessageChannel messages,
+                                  Options options) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BATCH_BUF_SIZE);
+        for (int seq = 0; seq < files.size(); seq++) {
+            Path filepath = files.get(seq);
+            try (FileChannel fileChannel = FileChannel.open(filepath, READ)) {
+                long size = fileChannel.size();
+                Message fileInfo = messages.compose(Message.BATCH_FILE);
+                fileInfo.seq = seq;
+                fileInfo.name = filepath.getFileName().toString();
+                fileInfo.size = size;
+                if (options.hash) {
+                    fileInfo.hash = hashFile(filepath);
+                }
+                ByteBuffer header = messages.encode(fileInfo);
+
+                boolean small = header.remaining() + size <= buffer.capacity();
+                if ((small ? header.remaining() + size : header.remaining()) > buffer.remaining()) {
+                    drain(buffer, channel);
+                }
+                buffer.put(header);
+                if (!small) {
+                    drain(buffer, channel);
+                    sendFileData(fileChannel, 0, size, channel, options.useTransferTo);
+                    continue;
+                }
+                for (long read = 0; read < size; ) {
+                    int readNum = fileChannel.read(buffer, read);
+                    if (readNum < 0)
+                        throw new EOFException("File was truncated during uploading");
+                    read += readNum;
+                }
+            }
+        }
+        drain(buffer, channel);
+    }
+
+    // writes out gathered data and clears the buffer
+    private static void drain(ByteBuffer buffer, SocketChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // uploads files over a connection each, for servers without batches. Returns number of refused files.
+    // File whose connection is closed by the server without reply is counted as refused too, unless
+    // resume is requested: then the rest, starting from it, is uploaded again later
+    private static int uploadEach(List<Path> files, InetSocketAddress serverAddress, Options options)
+            throws IOException {
+        int errors = 0;
+        for (Iterator<Path> iterator = files.iterator(); iterator.hasNext(); ) {
+            Path filepath = iterator.next();
+            try {
+                upload(filepath, serverAddress, options);
+            } catch (IOException e) {
+                if (!isServerError(e) && (options.resume || !(e instanceof EOFException)))
+                    throw e;
+                System.err.println(filepath.getFileName() + ": " + e.getMessage());
+                errors++;
+            }
+            iterator.remove();
+        }
+        return errors;
+    }
+
+    // returns hex SHA-256 digest of file
+    static String hashFile(Path filepath) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUF_SIZE);
+        try (FileChannel fileChannel = FileChannel.open(filepath, READ)) {
+            while (fileChannel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return ContentHasher.toHex(digest.digest());
+    }
+
+    // uploads chunks starting from the one at offset over control connection and streams - 1 additional ones,
+    // all streams take next chunk as soon as previous one is accepted. Parameters are negotiated with server
+    private static void uploadChunks(FileChannel fileChannel, long size, long offset, InetSocketAddress serverAddress,
+                                     Options options, String upload, int streams, long chunkSize,
+                                     SocketChannel controlChannel, MessageChannel controlMessages)
+            throws IOException {
+        AtomicLong nextChunk = new AtomicLong(offset / chunkSize);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(streams - 1, 1));
+        try {
+            List<Future<?>> streamResults = new ArrayList<>();
+            for (int i = 1; i < streams; i++) {
+                streamResults.add(executor.submit(() -> {
+                    try (SocketChannel channel = SocketChannel.open(serverAddress)) {
+                        MessageChannel messages = new MessageChannel(channel,
+                                new ConnectionReader(channel, READ_BUF_SIZE), options.legacy);
+                        sendChunks(fileChannel, size, upload, chunkSize, nextChunk, options.useTransferTo,
+                                channel, messages);
+                    }
+                    return null;
+                }));
+            }
+            sendChunks(fileChannel, size, upload, chunkSize, nextChunk, options.useTransferTo,
+                    controlChannel, controlMessages);
+
+            for (Future<?> result : streamResults) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException) e.getCause();
+                    throw new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void sendChunks(FileChannel fileChannel, long size, String upload, long chunkSize,
+                                   AtomicLong nextChunk, boolean useTransferTo,
+                                   SocketChannel channel, MessageChannel messages) throws IOException {
+        while (true) {
+            long offset = nextChunk.getAndIncrement() * chunkSize;
+            if (offset >= size)
+                return;
+            long length = Math.min(chunkSize, size - offset);
+
+            Message rangeInfo = messages.compose(Message.RANGE);
+            rangeInfo.upload = upload;
+            rangeInfo.offset = offset;
+            rangeInfo.length = length;
+            messages.send(rangeInfo);
+
+            sendFileData(fileChannel, offset, length, channel, useTransferTo);
+
+            Message serverResponse = receiveStatusMessage(messages);
+            if (Message.SUCCESS != serverResponse.status) {
+                throw new IOException("ERROR: " + serverResponse.details);
+            }
+        }
+    }
+
+    // downloads range of stored file to DOWNLOAD_DIR. Empty range at the end of file is asked for first,
+    // it tells the size to resolve requested range against. Then range is fetched by chunks over control
+    // connection and streams - 1 additional ones, each chunk is written at its place in the file as it arrives.
+    // With one stream the whole range is a single chunk. Range is written to the part file, which replaces
+    // local file of the same name only when the whole range has arrived
+    static void download(String name, InetSocketAddress serverAddress, Options options) throws IOException {
+        Files.createDirectories(DOWNLOAD_DIR);
+        Path filePath = DOWNLOAD_DIR.resolve(Paths.get(name).getFileName());
+        Path partPath = Paths.get(filePath + PART_SUFFIX);
+        boolean downloaded = false;
+        try {
+            downloadRange(name, serverAddress, options, partPath);
+            Files.move(partPath, filePath, REPLACE_EXISTING, ATOMIC_MOVE);
+            downloaded = true;
+        } finally {
+            if (!downloaded) {
+                Files.deleteIfExists(partPath);
+            }
+        }
+    }
+
+    private static void downloadRange(String name, InetSocketAddress serverAddress, Options options, Path partPath)
+            throws IOException {
+        try (SocketChannel controlChannel = SocketChannel.open(serverAddress);
+             FileChannel fileChannel = FileChannel.open(partPath, CREATE, TRUNCATE_EXISTING, WRITE)) {
+            ConnectionReader controlReader = new ConnectionReader(controlChannel, BUF_SIZE);
+            MessageChannel controlMessages = new MessageChannel(controlChannel, controlReader, options.legacy);
+
+            Message request = controlMessages.compose(Message.DOWNLOAD);
+            request.name = name;
+            request.length = 0;
+            controlMessages.send(request);
+            Message serverResponse = receiveStatusMessage(controlMessages);
+            if (Message.BUSY == serverResponse.status) {
+                throw new ServerBusyException("BUSY: " + serverResponse.details,
+                        (serverResponse.retry >= 0) ? serverResponse.retry : RESUME_DELAY);
+            }
+            if (Message.SUCCESS != serverResponse.status) {
+                throw new IOException("ERROR: " + serverResponse.details);
+            }
+
+            // resolve range as the server does
+            long size = serverResponse.size;
+            long suffixStart = (options.rangeLength < 0) ? 0 : Math.max(size - options.rangeLength, 0);
+            long start = (options.rangeOffset < 0) ? suffixStart : options.rangeOffset;
+            if (start > size) {
+                throw new IOException("ERROR: Range not satisfiable, file has " + size + " bytes");
+            }
+            long end = (options.rangeLength < 0) ? size : Math.min(start + options.rangeLength, size);
+            long chunkSize = (options.streams > 1) ? options.chunkSize : Math.max(end - start, 1);
+
+            AtomicLong nextChunk = new AtomicLong();
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(options.streams - 1, 1));
+            try {
+                List<Future<?>> streamResults = new ArrayList<>();
+                for (int i = 1; i < options.streams; i++) {
+                    streamResults.add(executor.submit(() -> {
+                        try (SocketChannel channel = SocketChannel.open(serverAddress)) {
+                            ConnectionReader reader = new ConnectionReader(channel, BUF_SIZE);
+                            fetchChunks(name, size, start, end, chunkSize, nextChunk, fileChannel,
+                                    new MessageChannel(channel, reader, options.legacy), reader);
+                        }
+                        return null;
+                    }));
+                }
+                fetchChunks(name, size, start, end, chunkSize, nextChunk, fileChannel, controlMessages,
+                        controlReader);
+
+                for (Future<?> result : streamResults) {
+                    try {
+                        result.get();
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof IOException)
+                            throw (IOException) e.getCause();
+                        throw new IOException(e.getCause());
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    // requests next chunks of range from start to end until there are none left and writes them to file
+    // at their offsets from start
+    private static void fetchChunks(String name, long size, long start, long end, long chunkSize,
+                                    AtomicLong nextChunk, FileChannel fileChannel, MessageChannel messages,
+                                    ConnectionReader in) throws IOException {
+        while (true) {
+            long offset = start + nextChunk.getAndIncrement() * chunkSize;
+            if (offset >= end)
+                return;
+            long length = Math.min(chunkSize, end - offset);
+
+            Message request = messages.compose(Message.DOWNLOAD);
+            request.name = name;
+            request.offset = offset;
+            request.length = length;
+            messages.send(request);
+
+            Message serverResponse = receiveStatusMessage(messages);
+            if (Message.SUCCESS != serverResponse.status) {
+                throw new IOException("ERROR: " + serverResponse.details);
+            }
+            if (serverResponse.size != size || serverResponse.offset != offset || serverResponse.length != length) {
+                throw new IOException("ERROR: File has been changed during downloading");
+            }
+
+            for (long received = 0; received < length; ) {
+                long recvNum = in.readToFile(fileChannel, offset - start + received, length - received);
+                if (recvNum == -1)
+                    throw new EOFException("Connection is closed by the server");
+                received += recvNum;
+            }
+        }
+    }
+
+    // sends count bytes of file starting from position. With transferTo kernel moves file pages
+    // straight to the socket, if it makes no progress the rest is copied through a direct buffer
+    static void sendFileData(FileChannel fileChannel, long position, long count, SocketChannel channel,
+                             boolean useTransferTo) throws IOException {
+        long sent = 0;
+        if (useTransferTo) {
+            while (sent < count) {
+                long sndNum = fileChannel.transferTo(position + sent, count - sent, channel);
+                if (sndNum <= 0)
+                    break;
+                sent += sndNum;
+            }
+        }
+        if (sent == count)
+            return;
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(BUF_SIZE, count - sent));
+        while (sent < count) {
+            buffer.clear();
+            if (count - sent < buffer.capacity()) {
+                buffer.limit((int) (count - sent));
+            }
+            if (fileChannel.read(buffer, position + sent) < 0) {
+                throw new EOFException("File was truncated during uploading");
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                sent += channel.write(buffer);
+            }
+        }
+    }
+
+    // sends count bytes of file starting from position as compressed frames. Blocks are read and
+    // compressed by worker threads while previous frames are being sent
+    private static void sendBlocks(FileChannel fileChannel, long position, long count, SocketChannel channel)
+            throws IOException {
+        ExecutorService encoders = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        ArrayDeque<Future<ByteBuffer>> inFlight = new ArrayDeque<>();
+        long next = position;
+        try {
+            while (next < position + count || !inFlight.isEmpty()) {
+                while (next < position + count && inFlight.size() < MAX_BLOCKS_IN_FLIGHT) {
+                    long blockPosition = next;
+                    int length = (int) Math.min(BlockCodec.BLOCK_SIZE, position + count - next);
+                    inFlight.add(encoders.submit(() -> BlockCodec.encode(fileChannel, blockPosition, length)));
+                    next += length;
+                }
+
+                ByteBuffer frame;
+                try {
+                    frame = inFlight.poll().get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException) e.getCause();
+                    throw new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+            }
+        } finally {
+            encoders.shutdownNow();
+        }
+    }
+
+    private static Message receiveStatusMessage(MessageChannel messages) throws IOException {
+        Message serverResponse = messages.read();
+        if (null == serverResponse)
+            throw new EOFException("Connection is closed by the server");
+        if (Message.STATUS != serverResponse.type)
+            throw new IOException("Invalid status received");
+        return serverResponse;
     }
 }
@@ -0,0 +1,179 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+
+// Reads text lines, message frames and raw data from the same blocking channel through one direct buffer.
+// Bytes read ahead of a line stay in the buffer and are returned first by the following reads,
+// so peer may send data right after a line without waiting for a reply.
+// If disk permits are given, one of them is held during each write to file. If traffic shaper's flow
+// is given, all received data is accounted in it and rate limited reads take a quantum at a time
+class ConnectionReader {
+    private static final int MAX_LINE_LEN = 64 * 1024;
+
+    ConnectionReader(SocketChannel channel, int bufferSize) {
+        this(channel, bufferSize, null, null);
+    }
+
+    ConnectionReader(SocketChannel channel, int bufferSize, Semaphore diskPermits, TrafficShaper.Flow flow) {
+        this.channel = channel;
+        this.diskPermits = diskPermits;
+        this.flow = flow;
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+        buffer.flip(); // buffer is always kept ready for reading
+    }
+
+    // returns line without line terminator, null if stream ended before any byte of it
+    String readLine() throws IOException {
+        int scanned = 0;
+        while (true) {
+            for (int i = buffer.position() + scanned; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    byte[] line = new byte[i - buffer.position()];
+                    buffer.get(line);
+                    buffer.get(); // skip terminator
+                    int length = (line.length > 0 && line[line.length - 1] == '\r') ? line.length - 1 : line.length;
+                    return new String(line, 0, length, StandardCharsets.UTF_8);
+                }
+            }
+            scanned = buffer.remaining();
+            if (scanned >= Math.min(MAX_LINE_LEN, buffer.capacity())) {
+                throw new IOException("Line is too long");
+            }
+
+            if (fill() == -1) {
+                if (0 == scanned)
+                    return null;
+                throw new EOFException("Unexpected end of stream");
+            }
+        }
+    }
+
+    // returns next byte without consuming it, -1 at the end of stream
+    int peek() throws IOException {
+        if (!buffer.hasRemaining() && fill() == -1)
+            return -1;
+        return buffer.get(buffer.position()) & 0xFF;
+    }
+
+    // reads binary frame of message, returns false if stream ended before any byte of it
+    boolean readMessage(Message message) throws IOException {
+        while (!message.decode(buffer)) {
+            if (buffer.remaining() >= buffer.capacity())
+                throw new IOException("Message is too long");
+
+            int buffered = buffer.remaining();
+            if (fill() == -1) {
+                if (0 == buffered)
+                    return false;
+                throw new EOFException("Unexpected end of stream");
+            }
+        }
+        return true;
+    }
+
+    // fills remaining part of dst, throws EOFException if stream ends before
+    void readFully(ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (!buffer.hasRemaining() && fill() == -1)
+                throw new EOFException("Unexpected end of stream");
+
+            int oldLimit = buffer.limit();
+            buffer.limit(buffer.position() + Math.min(dst.remaining(), buffer.remaining()));
+            dst.put(buffer);
+            buffer.limit(oldLimit);
+        }
+    }
+
+    // discards count bytes, throws EOFException if stream ends before
+    void skip(long count) throws IOException {
+        while (count > 0) {
+            if (!buffer.hasRemaining() && fill() == -1)
+                throw new EOFException("Unexpected end of stream");
+
+            int skipped = (int) Math.min(count, buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            count -= skipped;
+        }
+    }
+
+    // tells if there is data read ahead, so the next read won't block
+    boolean hasBufferedData() {
+        return buffer.hasRemaining();
+    }
+
+    // writes up to count bytes to file at position, returns written bytes or -1 at the end of stream.
+    // Data read after requested bytes stays in the buffer, so pipelined files need no extra reads
+    long readToFile(FileChannel fileChannel, long position, long count) throws IOException {
+        if (!buffer.hasRemaining()) {
+            buffer.clear();
+            int recvNum = receive();
+            buffer.flip();
+            if (recvNum == -1)
+                return -1;
+        }
+
+        int oldLimit = buffer.limit();
+        if (count < buffer.remaining()) {
+            buffer.limit(buffer.position() + (int) count);
+        }
+        long written = writeToFile(fileChannel, buffer, position);
+        buffer.limit(oldLimit);
+        return written;
+    }
+
+    // writes remaining bytes of src to file at position holding a disk permit, returns their number.
+    // Touches nothing but the permits, so data decoded by other threads is written through it too
+    long writeToFile(FileChannel fileChannel, ByteBuffer src, long position) throws IOException {
+        long written = 0;
+        if (null != diskPermits) {
+            try {
+                diskPermits.acquire();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        try {
+            while (src.hasRemaining()) {
+                written += fileChannel.write(src, position + written);
+            }
+        } finally {
+            if (null != diskPermits) {
+                diskPermits.release();
+            }
+        }
+        return written;
+    }
+
+    // reads more data after unread one, returns number of read bytes or -1 at the end of stream
+    private int fill() throws IOException {
+        buffer.compact();
+        int recvNum = receive();
+        buffer.flip();
+        return recvNum;
+    }
+
+    // reads from channel to the buffer being filled and pays for received data
+    private int receive() throws IOException {
+        if (null == flow)
+            return channel.read(buffer);
+
+        int oldLimit = buffer.limit();
+        if (flow.isLimited() && buffer.remaining() > TrafficShaper.QUANTUM) {
+            buffer.limit(buffer.position() + TrafficShaper.QUANTUM);
+        }
+        int recvNum = channel.read(buffer);
+        buffer.limit(oldLimit);
+        flow.accountAndWait(Math.max(recvNum, 0));
+        return recvNum;
+    }
+
+    private final SocketChannel channel;
+    private final ByteBuffer buffer;
+    private final Semaphore diskPermits;
+    private final TrafficShaper.Flow flow;
+}
@@ -0,0 +1,223 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+// Computes SHA-256 of a file being uploaded on a small pool of threads. The hasher follows the prefix
+// of the file that has been received and reads it back while it's still in the page cache,
+// so threads reading sockets never wait for hashing. Hashing is handed to the pool only when there are
+// new bytes to hash, so no pool thread waits for a slow client, and a hasher gives its thread to other
+// ones after each SLICE of bytes. Buffers belong to pool threads rather than to uploads.
+// Files up to INLINE_SIZE are hashed by the thread awaiting the result, hashing them takes less
+// than handing them over to another thread
+class ContentHasher {
+    private static final int BUF_SIZE = 256 * 1024;
+    private static final long INLINE_SIZE = 64 * 1024;
+    private static final long SLICE = 16L * 1024 * 1024;
+    private static final ExecutorService executor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), task -> {
+                Thread thread = new Thread(task, "hasher");
+                thread.setDaemon(true);
+                return thread;
+            });
+    // direct buffer is zeroed when allocated, so each pool thread keeps its own
+    private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(
+            () -> ByteBuffer.allocateDirect(BUF_SIZE));
+    private static final SecureRandom random = new SecureRandom();
+
+    private ContentHasher(Path path, long size) throws IOException {
+        this.size = size;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        fileChannel = FileChannel.open(path, READ);
+    }
+
+    static ContentHasher start(Path path, long size) throws IOException {
+        return new ContentHasher(path, size);
+    }
+
+    // checks that hash is a hex SHA-256 digest as sent by clients
+    static boolean isValidHash(String hash) {
+        return null != hash && hash.matches("[0-9a-f]{64}");
+    }
+
+    // random hex value of the same form as hash, for content challenges
+    static String newNonce() {
+        byte[] nonce = new byte[32];
+        random.nextBytes(nonce);
+        return toHex(nonce);
+    }
+
+    // random number from 0 to bound - 1, unpredictable for clients
+    static long randomLong(long bound) {
+        return Math.floorMod(random.nextLong(), bound);
+    }
+
+    // returns hex SHA-256 of nonce followed by range of file. Peer answering a challenge with it
+    // has the range at hand rather than only the hash of the file
+    static String hashRange(Path path, String nonce, long offset, long length) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        digest.update(nonce.getBytes(StandardCharsets.US_ASCII));
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, BUF_SIZE));
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            for (long hashed = 0; hashed < length; ) {
+                buffer.clear();
+                if (length - hashed < buffer.capacity()) {
+                    buffer.limit((int) (length - hashed));
+                }
+                int readNum = channel.read(buffer, offset + hashed);
+                if (readNum < 0)
+                    throw new IOException("Range is out of file");
+                buffer.flip();
+                digest.update(buffer);
+                hashed += readNum;
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    // tells that first length bytes of the file have been written
+    synchronized void advance(long length) {
+        if (length > available) {
+            available = length;
+            schedule();
+        }
+    }
+
+    synchronized void cancel() {
+        cancelled = true;
+        notifyAll();
+        if (!scheduled) {
+            close();
+        }
+    }
+
+    // waits until the whole file is hashed, returns hex digest
+    synchronized String await() throws IOException {
+        if (size <= INLINE_SIZE && null == result && null == error && !cancelled) {
+            try {
+                hash(ByteBuffer.allocate((int) size), size);
+                result = toHex(digest.digest());
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                close();
+            }
+        }
+        try {
+            while (null == result && null == error && !cancelled) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        if (null != error)
+            throw error;
+        if (cancelled)
+            throw new IOException("Hashing is cancelled");
+        return result;
+    }
+
+    // hands hashing of available bytes to the pool unless it's there already. Lock is held
+    private void schedule() {
+        if (size > INLINE_SIZE && !scheduled && !cancelled && null == error && hashed < available) {
+            scheduled = true;
+            executor.execute(this::hashAvailable);
+        }
+    }
+
+    // runs in the pool, only one task of hasher is scheduled at a time
+    private void hashAvailable() {
+        long limit;
+        synchronized (this) {
+            limit = Math.min(available, hashed + SLICE);
+        }
+        IOException hashError = null;
+        if (!cancelled()) {
+            try {
+                hash(buffers.get(), limit);
+            } catch (IOException e) {
+                hashError = e;
+            }
+        }
+
+        synchronized (this) {
+            scheduled = false;
+            if (null != hashError) {
+                error = hashError;
+            } else if (hashed == size && !cancelled) {
+                result = toHex(digest.digest());
+            }
+            if (cancelled || null != error || null != result) {
+                close();
+                notifyAll();
+            } else {
+                schedule(); // bytes which came meanwhile or left over the slice
+            }
+        }
+    }
+
+    private synchronized boolean cancelled() {
+        return cancelled;
+    }
+
+    // hashes bytes from hashed to limit
+    private void hash(ByteBuffer buffer, long limit) throws IOException {
+        while (hashed < limit) {
+            buffer.clear();
+            if (limit - hashed < buffer.capacity()) {
+                buffer.limit((int) (limit - hashed));
+            }
+            int readNum = fileChannel.read(buffer, hashed);
+            if (readNum < 0)
+                throw new IOException("File was truncated during hashing");
+            buffer.flip();
+            digest.update(buffer);
+            hashed += readNum;
+        }
+    }
+
+    private void close() {
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            // file is only read
+        }
+    }
+
+    private final long size;
+    private final MessageDigest digest;
+    private final FileChannel fileChannel;
+
+    private long available = 0;
+    private long hashed = 0; // changed only by the task in the pool or by awaiting thread
+    private boolean scheduled = false;
+    private boolean cancelled = false;
+    private String result;
+    private IOException error;
+}
@@ -0,0 +1,140 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+// Measures copy loops of the transfer path over loopback, without protocol around them: file to socket
+// by transferTo and through direct buffer as Client.sendFileData does it, socket to file as
+// ConnectionReader.readToFile does it for the server. Each loop first copies the file WARMUP_ITERATIONS
+// times so that JIT compiles it, then ITERATIONS measured times. Median rate is the one to compare
+// between revisions, best one shows the noise.
+//   java CopyBenchmark [file size in megabytes]
+public class CopyBenchmark {
+    private static final int DEFAULT_SIZE = 64; // in megabytes
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int ITERATIONS = 10;
+    private static final int BUF_SIZE = 1024 * 1024; // of server's connections and of peer
+
+    // copies size bytes between file and connected channel
+    interface CopyLoop {
+        void copy(FileChannel file, long size, SocketChannel channel) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long size = (long) ((args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_SIZE) * 1024 * 1024;
+
+        Path source = Files.createTempFile("copy-benchmark", ".bin");
+        Path target = Files.createTempFile("copy-benchmark", ".bin");
+        ExecutorService peers = Executors.newSingleThreadExecutor();
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+             FileChannel sourceFile = FileChannel.open(source, READ, WRITE);
+             FileChannel targetFile = FileChannel.open(target, WRITE)) {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            fill(sourceFile, size);
+
+            System.out.println("loop          | median, MB/s | best, MB/s");
+            measure("transferTo", serverChannel, peers, sourceFile, size, false,
+                    (file, count, channel) -> Client.sendFileData(file, 0, count, channel, true));
+            measure("direct buffer", serverChannel, peers, sourceFile, size, false,
+                    (file, count, channel) -> Client.sendFileData(file, 0, count, channel, false));
+            measure("readToFile", serverChannel, peers, targetFile, size, true, (file, count, channel) -> {
+                ConnectionReader in = new ConnectionReader(channel, BUF_SIZE);
+                for (long received = 0; received < count; ) {
+                    long recvNum = in.readToFile(file, received, count - received);
+                    if (recvNum == -1)
+                        throw new EOFException("Unexpected end of stream");
+                    received += recvNum;
+                }
+            });
+        } finally {
+            peers.shutdownNow();
+            Files.deleteIfExists(source);
+            Files.deleteIfExists(target);
+        }
+    }
+
+    // runs loop over new connection for each iteration, peer accepted on the other end either sends size bytes
+    // or drains them. Time is counted until peer is done, so data left in socket buffers isn't missed
+    private static void measure(String name, ServerSocketChannel serverChannel, ExecutorService peers,
+                                FileChannel file, long size, boolean peerSends, CopyLoop loop)
+            throws IOException, InterruptedException {
+        double[] rates = new double[ITERATIONS];
+        for (int i = -WARMUP_ITERATIONS; i < ITERATIONS; i++) {
+            Future<?> peer = peers.submit(() -> {
+                try (SocketChannel channel = serverChannel.accept()) {
+                    if (peerSends) {
+                        send(channel, size);
+                    } else {
+                        drain(channel, size);
+                    }
+                }
+                return null;
+            });
+
+            long start = System.nanoTime();
+            try (SocketChannel channel = SocketChannel.open(serverChannel.getLocalAddress())) {
+                loop.copy(file, size, channel);
+                peer.get();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+            long elapsed = System.nanoTime() - start;
+            if (i >= 0) {
+                rates[i] = size / (1024.0 * 1024.0) / (elapsed / 1e9);
+            }
+        }
+
+        Arrays.sort(rates);
+        System.out.printf("%-13s | %12.1f | %10.1f%n", name, rates[ITERATIONS / 2], rates[ITERATIONS - 1]);
+    }
+
+    private static void send(SocketChannel channel, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUF_SIZE);
+        for (long sent = 0; sent < size; ) {
+            buffer.clear();
+            if (size - sent < buffer.capacity()) {
+                buffer.limit((int) (size - sent));
+            }
+            while (buffer.hasRemaining()) {
+                sent += channel.write(buffer);
+            }
+        }
+    }
+
+    private static void drain(SocketChannel channel, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUF_SIZE);
+        for (long received = 0; received < size; ) {
+            buffer.clear();
+            int recvNum = channel.read(buffer);
+            if (recvNum == -1)
+                throw new EOFException("Unexpected end of stream");
+            received += recvNum;
+        }
+    }
+
+    private static void fill(FileChannel file, long size) throws IOException {
+        byte[] chunk = new byte[BUF_SIZE];
+        for (long written = 0; written < size; ) {
+            ThreadLocalRandom.current().nextBytes(chunk);
+            ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length, size - written));
+            while (buffer.hasRemaining()) {
+                written += file.write(buffer, written);
+            }
+        }
+    }
+}
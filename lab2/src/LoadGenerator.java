@@ -0,0 +1,356 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Uploads files to a server from many concurrent clients at once, for each concurrency level, and prints
+// how long the whole level took, throughput, percentiles of upload completion times and CPU used.
+// Busy server is retried after the delay it suggests. Server should run in another JVM, so both don't
+// share the limit of open files: with --local one is started as a child process in a temporary directory
+// and is stopped with its files afterwards, its CPU is reported too. Otherwise uploaded files are named
+// load-<run>-<level>-<client> and are left in server's directory.
+// File sizes are fixed, uniform between MIN and MAX, or log-normal with given median and sigma. Sizes are
+// drawn from a generator with fixed seed, so runs with the same options upload the same files.
+// CPU is the share of one core used during the level, so several busy cores give more than 100%.
+// Failed uploads are counted by their cause, the most frequent causes are printed below level's results.
+//   java LoadGenerator server-address server-port [concurrent clients...] [options]
+//   java LoadGenerator --local[=ENGINE] [concurrent clients...] [options]
+public class LoadGenerator {
+    private static final int[] DEFAULT_LEVELS = {10, 100, 10_000};
+    private static final int DEFAULT_SIZE = 64 * 1024;
+    private static final String SIZE_OPTION = "--size=";
+    private static final String LOCAL_OPTION = "--local";
+    private static final String SERVER_ARG_OPTION = "--server-arg=";
+    private static final String USAGE = "Usage: java LoadGenerator server-address server-port|" + LOCAL_OPTION
+            + "[=ENGINE] [concurrent clients...] [" + SIZE_OPTION + "BYTES|MIN-MAX|lognormal:MEDIAN:SIGMA] ["
+            + SERVER_ARG_OPTION + "ARG]...";
+    private static final String LOGNORMAL = "lognormal:";
+    private static final int MAX_SIZE = 1 << 30; // all files are prefixes of one array
+    private static final long SEED = 42;
+    private static final int BUF_SIZE = 4096; // for responses
+    private static final int MAX_CAUSES = 5; // printed for each level
+
+    // local server is waited for so long to start accepting connections
+    private static final Duration STARTUP_TIMEOUT = Duration.ofSeconds(10);
+
+    // sizes of files uploaded by clients: uniform between min and max, or log-normal cut at max
+    private static final class SizeDistribution {
+        private SizeDistribution(int min, int max, double mu, double sigma) {
+            this.min = min;
+            this.max = max;
+            this.mu = mu;
+            this.sigma = sigma;
+        }
+
+        // BYTES, MIN-MAX or lognormal:MEDIAN:SIGMA, log-normal sizes are cut at 4 sigma above median
+        static SizeDistribution parse(String sizes) {
+            if (sizes.startsWith(LOGNORMAL)) {
+                String[] parameters = sizes.substring(LOGNORMAL.length()).split(":");
+                double mu = Math.log(Double.parseDouble(parameters[0]));
+                double sigma = Double.parseDouble(parameters[1]);
+                if (sigma < 0)
+                    throw new IllegalArgumentException("Invalid sizes " + sizes);
+                return new SizeDistribution(0, (int) Math.min(Math.exp(mu + 4 * sigma), MAX_SIZE), mu, sigma);
+            }
+            int dash = sizes.indexOf('-');
+            int min = Integer.parseInt((dash < 0) ? sizes : sizes.substring(0, dash));
+            int max = (dash < 0) ? min : Integer.parseInt(sizes.substring(dash + 1));
+            if (min < 0 || max < min || max > MAX_SIZE)
+                throw new IllegalArgumentException("Invalid sizes " + sizes);
+            return new SizeDistribution(min, max, 0, -1);
+        }
+
+        int next(Random random) {
+            if (sigma >= 0)
+                return (int) Math.min(Math.exp(mu + sigma * random.nextGaussian()), max);
+            return min + random.nextInt(max - min + 1);
+        }
+
+        int getMax() {
+            return max;
+        }
+
+        private final int min;
+        private final int max;
+        private final double mu;
+        private final double sigma; // negative for uniform distribution
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println(USAGE);
+            return;
+        }
+
+        int first; // first argument after server
+        boolean local = args[0].startsWith(LOCAL_OPTION);
+        List<String> serverArgs = new ArrayList<>();
+        if (local) {
+            if (args[0].startsWith(LOCAL_OPTION + "=")) {
+                serverArgs.add("--engine=" + args[0].substring(LOCAL_OPTION.length() + 1));
+            }
+            first = 1;
+        } else if (args.length >= 2) {
+            first = 2;
+        } else {
+            System.err.println(USAGE);
+            return;
+        }
+
+        SizeDistribution sizes = SizeDistribution.parse(String.valueOf(DEFAULT_SIZE));
+        int[] levels = new int[args.length - first];
+        int levelCount = 0;
+        for (int i = first; i < args.length; i++) {
+            if (args[i].startsWith(SIZE_OPTION)) {
+                sizes = SizeDistribution.parse(args[i].substring(SIZE_OPTION.length()));
+            } else if (args[i].startsWith(SERVER_ARG_OPTION)) {
+                serverArgs.add(args[i].substring(SERVER_ARG_OPTION.length()));
+            } else {
+                levels[levelCount++] = Integer.parseInt(args[i]);
+            }
+        }
+        if (0 == levelCount) {
+            levels = DEFAULT_LEVELS;
+            levelCount = levels.length;
+        }
+
+        byte[] data = new byte[sizes.getMax()]; // each file is a prefix of it
+        new Random(SEED).nextBytes(data);
+        String run = Long.toString(System.currentTimeMillis(), 36);
+
+        Process server = null;
+        Path serverDir = null;
+        InetSocketAddress serverAddress;
+        if (local) {
+            serverDir = Files.createTempDirectory("load-generator");
+            int port;
+            try (ServerSocket probe = new ServerSocket(0)) {
+                port = probe.getLocalPort();
+            }
+            server = startServer(serverDir, port, serverArgs);
+            serverAddress = new InetSocketAddress("localhost", port);
+        } else {
+            serverAddress = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+        }
+
+        try {
+            if (null != server) {
+                awaitServer(server, serverAddress);
+            }
+            System.out.println("clients | total, s | uploads/s |  MB/s | p50, ms | p99, ms | max, ms "
+                    + "| client CPU, % | server CPU, % | busy | failed");
+            for (int i = 0; i < levelCount; i++) {
+                int[] fileSizes = new int[levels[i]];
+                Random random = new Random(SEED + i);
+                for (int j = 0; j < fileSizes.length; j++) {
+                    fileSizes[j] = sizes.next(random);
+                }
+                runLevel(serverAddress, fileSizes, data, "load-" + run + "-" + levels[i] + "-", server);
+            }
+        } finally {
+            if (null != server) {
+                server.destroy();
+                server.waitFor();
+                deleteRecursively(serverDir);
+            }
+        }
+    }
+
+    // runs Server of this class path in given directory, its output is discarded
+    private static Process startServer(Path directory, int port, List<String> serverArgs) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(Stream.of(System.getProperty("java.class.path").split(File.pathSeparator))
+                .map(entry -> Paths.get(entry).toAbsolutePath().toString())
+                .collect(Collectors.joining(File.pathSeparator)));
+        command.add("Server");
+        command.add(String.valueOf(port));
+        command.addAll(serverArgs);
+
+        return new ProcessBuilder(command)
+                .directory(directory.toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    // waits until server accepts connections
+    private static void awaitServer(Process server, InetSocketAddress serverAddress)
+            throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + STARTUP_TIMEOUT.toNanos();
+        while (true) {
+            try {
+                SocketChannel.open(serverAddress).close();
+                return;
+            } catch (IOException e) {
+                if (!server.isAlive() || System.nanoTime() > deadline)
+                    throw new IOException("Local server hasn't started", e);
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static void runLevel(InetSocketAddress serverAddress, int[] fileSizes, byte[] data, String prefix,
+                                 Process server) throws InterruptedException {
+        int clients = fileSizes.length;
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(clients);
+        long[] latencies = new long[clients];
+        Arrays.fill(latencies, -1); // for failed uploads
+        AtomicInteger busy = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        Map<String, AtomicInteger> causes = new ConcurrentHashMap<>(); // failures by exception and message
+
+        ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor();
+        for (int i = 0; i < clients; i++) {
+            int client = i;
+            executor.execute(() -> {
+                try {
+                    start.await();
+                    long begin = System.nanoTime();
+                    upload(serverAddress, prefix + client, ByteBuffer.wrap(data, 0, fileSizes[client]), busy);
+                    latencies[client] = System.nanoTime() - begin;
+                } catch (IOException | RuntimeException e) {
+                    failed.incrementAndGet();
+                    // name of the file is left out, so the same failure of different clients is counted once
+                    String message = String.valueOf(e.getMessage()).replace(prefix + client, "<name>");
+                    causes.computeIfAbsent(e.getClass().getName() + ": " + message,
+                            cause -> new AtomicInteger()).incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    finish.countDown();
+                }
+            });
+        }
+
+        long clientCpu = getProcessCpuTime();
+        long serverCpu = getCpuTime(server);
+        long begin = System.nanoTime();
+        start.countDown();
+        finish.await();
+        long elapsed = System.nanoTime() - begin;
+        clientCpu = getProcessCpuTime() - clientCpu;
+        serverCpu = getCpuTime(server) - serverCpu;
+        executor.shutdown();
+
+        // finish latch orders writes of latencies before these reads
+        long[] completed = Arrays.stream(latencies).filter(latency -> latency >= 0).sorted().toArray();
+        long bytes = 0;
+        for (int i = 0; i < clients; i++) {
+            if (latencies[i] >= 0) {
+                bytes += fileSizes[i];
+            }
+        }
+        double seconds = elapsed / 1e9;
+        System.out.printf("%7d | %8.2f | %9.1f | %5.1f | %7.1f | %7.1f | %7.1f | %13s | %13s | %4d | %d%n",
+                clients, seconds, completed.length / seconds, bytes / (double) (1 << 20) / seconds,
+                toMillis(percentile(completed, 0.5)), toMillis(percentile(completed, 0.99)),
+                toMillis(percentile(completed, 1)), formatCpu(clientCpu, elapsed), formatCpu(serverCpu, elapsed),
+                busy.get(), failed.get());
+        causes.entrySet().stream()
+                .sorted(Comparator.comparingInt((Map.Entry<String, AtomicInteger> cause) -> cause.getValue().get())
+                        .reversed())
+                .limit(MAX_CAUSES)
+                .forEach(cause -> System.out.printf("        failed %d: %s%n", cause.getValue().get(), cause.getKey()));
+    }
+
+    // nearest rank percentile of sorted values, 0 if there are none
+    private static long percentile(long[] sorted, double fraction) {
+        if (0 == sorted.length)
+            return 0;
+        return sorted[Math.max((int) Math.ceil(fraction * sorted.length) - 1, 0)];
+    }
+
+    private static double toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos) / 1000.0;
+    }
+
+    private static String formatCpu(long cpuNanos, long elapsedNanos) {
+        return (cpuNanos < 0) ? "-" : String.format("%.0f", 100.0 * cpuNanos / elapsedNanos);
+    }
+
+    // CPU time of this JVM in nanoseconds, -1 if it isn't available
+    private static long getProcessCpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        return -1;
+    }
+
+    // CPU time of process in nanoseconds, -1 if there is no process or it isn't available
+    private static long getCpuTime(Process process) {
+        if (null == process)
+            return -1;
+        return process.info().totalCpuDuration().map(Duration::toNanos).orElse(-1L);
+    }
+
+    // single stream upload as Client does it, retried while server is busy
+    private static void upload(InetSocketAddress serverAddress, String name, ByteBuffer data, AtomicInteger busy)
+            throws IOException, InterruptedException {
+        while (true) {
+            try (SocketChannel channel = SocketChannel.open(serverAddress)) {
+                MessageChannel messages = new MessageChannel(channel, new ConnectionReader(channel, BUF_SIZE), false);
+                Message fileInfo = messages.compose(Message.FILE);
+                fileInfo.name = name;
+                fileInfo.size = data.remaining();
+                messages.send(fileInfo);
+
+                Message response = receiveStatus(messages);
+                if (Message.BUSY == response.status) {
+                    busy.incrementAndGet();
+                    Thread.sleep((response.retry >= 0) ? response.retry : 1000);
+                    continue;
+                }
+                if (Message.SUCCESS != response.status)
+                    throw new IOException(response.details);
+
+                ByteBuffer buffer = data.duplicate();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                response = receiveStatus(messages);
+                if (Message.SUCCESS != response.status)
+                    throw new IOException(response.details);
+                return;
+            }
+        }
+    }
+
+    private static Message receiveStatus(MessageChannel messages) throws IOException {
+        Message response = messages.read();
+        if (null == response || Message.STATUS != response.type)
+            throw new IOException("No status received");
+        return response;
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
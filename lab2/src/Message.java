@@ -0,0 +1,376 @@
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Header of upload or status exchanged between file data. Messages are sent as binary frames,
+// all values are big-endian:
+//   type   (byte) - FILE, BATCH, BATCH_FILE, RANGE, COMMIT, STATUS, DOWNLOAD or PROOF
+//   length (int)  - length of fields following, MAX_FRAME_LEN at most
+//   fields, each of them is
+//     tag    (byte)
+//     length (unsigned short)
+//     value  - long numbers, byte flags, UTF-8 strings or raw SHA-256
+// Fields that aren't set are omitted, unknown ones are skipped. Frame type is never '{', so peer starting
+// a message with it speaks legacy protocol of JSON lines, which are converted to the same messages.
+// Frames are parsed in place into a reused message, nothing is allocated except strings they carry
+final class Message {
+    static final byte FILE = 1;       // name, size, hash, resume, codec; streams and chunk for parallel upload
+    static final byte BATCH = 2;      // BATCH_FILE messages follow without waiting for replies
+    static final byte BATCH_FILE = 3; // seq, name, size, hash, then file data
+    static final byte RANGE = 4;      // upload, offset, length, then data of the range
+    static final byte COMMIT = 5;     // upload
+    static final byte STATUS = 6;     // status, details and values answering the request
+    static final byte DOWNLOAD = 7;   // name, offset, length of range of stored file, see Server.processDownloads
+    static final byte PROOF = 8;      // hash answering content challenge, see Server.deduplicate
+
+    static final byte SUCCESS = 0;
+    static final byte ERROR = 1;
+    static final byte BUSY = 2;
+
+    static final int HEADER_LEN = 1 + Integer.BYTES;
+    static final int MAX_FRAME_LEN = 64 * 1024;
+
+    private static final byte NAME_FIELD = 1;
+    private static final byte SIZE_FIELD = 2;
+    private static final byte HASH_FIELD = 3;
+    private static final byte SEQ_FIELD = 4;
+    private static final byte OFFSET_FIELD = 5;
+    private static final byte LENGTH_FIELD = 6;
+    private static final byte STREAMS_FIELD = 7;
+    private static final byte CHUNK_FIELD = 8;
+    private static final byte RETRY_FIELD = 9;
+    private static final byte FLAGS_FIELD = 10;
+    private static final byte CODEC_FIELD = 11;
+    private static final byte STATUS_FIELD = 12;
+    private static final byte DETAILS_FIELD = 13;
+    private static final byte UPLOAD_FIELD = 14;
+    private static final int FIELD_HEADER_LEN = 1 + Short.BYTES;
+    private static final int RESUME_FLAG = 1;
+    private static final int SKIP_FLAG = 2;
+    private static final int HASH_LEN = 32;
+
+    private static final String[] STATUS_NAMES = {"SUCCESS", "ERROR", "BUSY"};
+
+    Message() {
+        clear(STATUS);
+    }
+
+    // resets all fields, returns this message
+    Message clear(byte type) {
+        this.type = type;
+        status = SUCCESS;
+        details = null;
+        name = null;
+        upload = null;
+        hash = null;
+        codec = null;
+        size = -1;
+        seq = -1;
+        offset = -1;
+        length = -1;
+        streams = 1;
+        chunk = 0;
+        retry = -1;
+        resume = false;
+        skip = false;
+        return this;
+    }
+
+    // makes this message a status, returns it
+    Message status(byte status, String details) {
+        clear(STATUS);
+        this.status = status;
+        this.details = details;
+        return this;
+    }
+
+    // reads frame at position of buffer. Returns false and leaves buffer as is if frame isn't complete yet
+    boolean decode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_LEN)
+            return false;
+        int start = buffer.position();
+        byte frameType = buffer.get(start);
+        int frameLength = buffer.getInt(start + 1);
+        if (frameType < FILE || frameType > PROOF || frameLength < 0 || frameLength > MAX_FRAME_LEN)
+            throw new IOException("Invalid message");
+        if (buffer.remaining() < HEADER_LEN + frameLength)
+            return false;
+
+        clear(frameType);
+        int end = start + HEADER_LEN + frameLength;
+        buffer.position(start + HEADER_LEN);
+        while (buffer.position() < end) {
+            if (end - buffer.position() < FIELD_HEADER_LEN)
+                throw new IOException("Invalid message");
+            byte field = buffer.get();
+            int fieldLength = Short.toUnsignedInt(buffer.getShort());
+            int fieldEnd = buffer.position() + fieldLength;
+            if (fieldEnd > end)
+                throw new IOException("Invalid message");
+
+            switch (field) {
+                case NAME_FIELD: name = getString(buffer, fieldLength); break;
+                case UPLOAD_FIELD: upload = getString(buffer, fieldLength); break;
+                case CODEC_FIELD: codec = getString(buffer, fieldLength); break;
+                case DETAILS_FIELD: details = getString(buffer, fieldLength); break;
+                case HASH_FIELD: hash = getHash(buffer, fieldLength); break;
+                case SIZE_FIELD: size = getLong(buffer, fieldLength); break;
+                case SEQ_FIELD: seq = getLong(buffer, fieldLength); break;
+                case OFFSET_FIELD: offset = getLong(buffer, fieldLength); break;
+                case LENGTH_FIELD: length = getLong(buffer, fieldLength); break;
+                case CHUNK_FIELD: chunk = getLong(buffer, fieldLength); break;
+                case RETRY_FIELD: retry = getLong(buffer, fieldLength); break;
+                case STREAMS_FIELD: streams = (int) Math.min(getLong(buffer, fieldLength), Integer.MAX_VALUE); break;
+                case STATUS_FIELD: status = getByte(buffer, fieldLength); break;
+                case FLAGS_FIELD:
+                    byte flags = getByte(buffer, fieldLength);
+                    resume = 0 != (flags & RESUME_FLAG);
+                    skip = 0 != (flags & SKIP_FLAG);
+                    break;
+                default: // field of a newer protocol
+            }
+            buffer.position(fieldEnd);
+        }
+        if (STATUS == type && (status < SUCCESS || status > BUSY))
+            throw new IOException("Invalid message");
+        return true;
+    }
+
+    // reads message of legacy protocol
+    void decodeJson(String line) throws IOException {
+        try {
+            JSONObject json = new JSONObject(line);
+            if (json.has("status")) {
+                clear(STATUS);
+                status = parseStatus(json.getString("status"));
+                details = json.optString("details");
+            } else if (json.has("upload")) {
+                clear(json.optBoolean("commit") ? COMMIT : RANGE);
+            } else if (json.optBoolean("batch")) {
+                clear(BATCH);
+            } else if (json.optBoolean("download")) {
+                clear(DOWNLOAD);
+            } else if (json.optBoolean("proof")) {
+                clear(PROOF);
+            } else {
+                clear(json.has("seq") ? BATCH_FILE : FILE);
+            }
+            name = json.has("name") ? json.getString("name") : null;
+            upload = json.has("upload") ? json.getString("upload") : null;
+            hash = json.has("hash") ? json.getString("hash") : null;
+            codec = json.has("codec") ? json.getString("codec") : null;
+            size = json.optLong("size", -1);
+            seq = json.optLong("seq", -1);
+            offset = json.optLong("offset", -1);
+            length = json.optLong("length", -1);
+            streams = json.optInt("streams", 1);
+            chunk = json.optLong("chunk", 0);
+            retry = json.optLong("retry", -1);
+            resume = json.optBoolean("resume");
+            skip = json.optBoolean("skip");
+        } catch (JSONException e) {
+            throw new IOException("Invalid message: " + e.getMessage(), e);
+        }
+    }
+
+    // appends binary frame, or JSON line in legacy protocol. BufferOverflowException is thrown if it doesn't fit,
+    // part of message may be written then
+    void encode(ByteBuffer out, boolean legacy) throws IOException {
+        if (legacy) {
+            out.put((toJson().toString() + "\n").getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        int start = out.position();
+        out.put(type).putInt(0);
+        putString(out, NAME_FIELD, name);
+        putString(out, UPLOAD_FIELD, upload);
+        putString(out, CODEC_FIELD, codec);
+        putString(out, DETAILS_FIELD, details);
+        if (null != hash) {
+            putHash(out, hash);
+        }
+        putLong(out, SIZE_FIELD, size);
+        putLong(out, SEQ_FIELD, seq);
+        putLong(out, OFFSET_FIELD, offset);
+        putLong(out, LENGTH_FIELD, length);
+        putLong(out, CHUNK_FIELD, chunk);
+        putLong(out, RETRY_FIELD, retry);
+        if (1 != streams) {
+            putLong(out, STREAMS_FIELD, streams);
+        }
+        int flags = (resume ? RESUME_FLAG : 0) | (skip ? SKIP_FLAG : 0);
+        if (0 != flags) {
+            out.put(FLAGS_FIELD).putShort((short) 1).put((byte) flags);
+        }
+        if (STATUS == type) {
+            out.put(STATUS_FIELD).putShort((short) 1).put(status);
+        }
+
+        int frameLength = out.position() - start - HEADER_LEN;
+        if (frameLength > MAX_FRAME_LEN)
+            throw new IOException("Message is too long");
+        out.putInt(start + 1, frameLength);
+    }
+
+    // returns new buffer with encoded message, ready for writing
+    ByteBuffer toBuffer(boolean legacy) throws IOException {
+        for (int capacity = 256; ; capacity *= 2) {
+            ByteBuffer buffer = ByteBuffer.allocate(capacity);
+            try {
+                encode(buffer, legacy);
+                return buffer.flip();
+            } catch (BufferOverflowException e) {
+                // try a larger one
+            }
+        }
+    }
+
+    JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        if (STATUS == type) {
+            json.put("status", STATUS_NAMES[status]);
+            json.put("details", details);
+        } else if (BATCH == type) {
+            json.put("batch", true);
+        } else if (COMMIT == type) {
+            json.put("commit", true);
+        } else if (DOWNLOAD == type) {
+            json.put("download", true);
+        } else if (PROOF == type) {
+            json.put("proof", true);
+        }
+        if (null != name) {
+            json.put("name", name);
+        }
+        if (null != upload) {
+            json.put("upload", upload);
+        }
+        if (null != hash) {
+            json.put("hash", hash);
+        }
+        if (null != codec) {
+            json.put("codec", codec);
+        }
+        if (size >= 0) {
+            json.put("size", size);
+        }
+        if (seq >= 0) {
+            json.put("seq", seq);
+        }
+        if (offset >= 0) {
+            json.put("offset", offset);
+        }
+        if (length >= 0) {
+            json.put("length", length);
+        }
+        if (1 != streams) {
+            json.put("streams", streams);
+        }
+        if (chunk > 0) {
+            json.put("chunk", chunk);
+        }
+        if (retry >= 0) {
+            json.put("retry", retry);
+        }
+        if (resume) {
+            json.put("resume", true);
+        }
+        if (skip) {
+            json.put("skip", true);
+        }
+        return json;
+    }
+
+    private static byte parseStatus(String status) throws JSONException {
+        for (byte i = 0; i < STATUS_NAMES.length; i++) {
+            if (STATUS_NAMES[i].equals(status))
+                return i;
+        }
+        throw new JSONException("Unknown status " + status);
+    }
+
+    private String getString(ByteBuffer buffer, int length) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        }
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, 2 * scratch.length)];
+        }
+        buffer.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private String getHash(ByteBuffer buffer, int length) throws IOException {
+        if (HASH_LEN != length)
+            throw new IOException("Invalid message");
+        char[] hex = new char[2 * HASH_LEN];
+        for (int i = 0; i < HASH_LEN; i++) {
+            byte b = buffer.get();
+            hex[2 * i] = Character.forDigit((b >> 4) & 0xF, 16);
+            hex[2 * i + 1] = Character.forDigit(b & 0xF, 16);
+        }
+        return new String(hex);
+    }
+
+    private static long getLong(ByteBuffer buffer, int length) throws IOException {
+        if (Long.BYTES != length)
+            throw new IOException("Invalid message");
+        return buffer.getLong();
+    }
+
+    private static byte getByte(ByteBuffer buffer, int length) throws IOException {
+        if (1 != length)
+            throw new IOException("Invalid message");
+        return buffer.get();
+    }
+
+    private static void putString(ByteBuffer out, byte field, String value) throws IOException {
+        if (null == value)
+            return;
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF)
+            throw new IOException("Message is too long");
+        out.put(field).putShort((short) bytes.length).put(bytes);
+    }
+
+    // hash is hex SHA-256 as validated by ContentHasher.isValidHash
+    private static void putHash(ByteBuffer out, String hash) throws IOException {
+        if (!ContentHasher.isValidHash(hash))
+            throw new IOException("Invalid hash");
+        out.put(HASH_FIELD).putShort((short) HASH_LEN);
+        for (int i = 0; i < HASH_LEN; i++) {
+            out.put((byte) (Character.digit(hash.charAt(2 * i), 16) << 4 | Character.digit(hash.charAt(2 * i + 1), 16)));
+        }
+    }
+
+    private static void putLong(ByteBuffer out, byte field, long value) {
+        if (value >= 0) {
+            out.put(field).putShort((short) Long.BYTES).putLong(value);
+        }
+    }
+
+    byte type;
+    byte status;
+    String details;
+    String name;   // of file
+    String upload; // id of parallel upload
+    String hash;   // hex SHA-256 of file, or nonce and answer of content challenge
+    String codec;
+    // negative values and 0 chunk aren't set
+    long size;
+    long seq;
+    long offset;
+    long length;
+    int streams;
+    long chunk;
+    long retry;  // in milliseconds
+    boolean resume;
+    boolean skip;
+
+    private byte[] scratch = new byte[256]; // strings of frames in direct buffers are copied here
+}
@@ -0,0 +1,87 @@
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+// Messages of a blocking connection. Incoming ones are read through ConnectionReader, so data following
+// them stays there for the next reads. Each incoming message is recognized by its first byte, as overloaded
+// server answers before it knows the protocol. Outgoing messages are gathered in a buffer until flush and
+// are sent as JSON lines in legacy protocol.
+// Both incoming and outgoing messages are reused: a message is valid until the next one is read or composed
+class MessageChannel {
+    private static final int OUT_BUF_SIZE = 4096;
+
+    MessageChannel(SocketChannel channel, ConnectionReader in, boolean legacy) {
+        this.channel = channel;
+        this.in = in;
+        this.legacy = legacy;
+    }
+
+    // reads next message, returns null if stream ended before it
+    Message read() throws IOException {
+        int first = in.peek();
+        if (-1 == first)
+            return null;
+
+        if ('{' == first) {
+            incoming.decodeJson(in.readLine());
+        } else if (!in.readMessage(incoming)) {
+            return null;
+        }
+        return incoming;
+    }
+
+    // returns cleared outgoing message of given type
+    Message compose(byte type) {
+        return outgoing.clear(type);
+    }
+
+    // returns outgoing status message
+    Message status(byte status, String details) {
+        return outgoing.status(status, details);
+    }
+
+    // sends message at once
+    void send(Message message) throws IOException {
+        queue(message);
+        flush();
+    }
+
+    // sends message with the next flush, or earlier if the buffer is full
+    void queue(Message message) throws IOException {
+        while (true) {
+            int start = out.position();
+            try {
+                message.encode(out, legacy);
+                return;
+            } catch (BufferOverflowException e) {
+                out.position(start);
+                if (start > 0) {
+                    flush();
+                } else {
+                    out = ByteBuffer.allocate(2 * out.capacity());
+                }
+            }
+        }
+    }
+
+    void flush() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    // returns new buffer with message encoded in the protocol of this connection
+    ByteBuffer encode(Message message) throws IOException {
+        return message.toBuffer(legacy);
+    }
+
+    private final SocketChannel channel;
+    private final ConnectionReader in;
+    private final boolean legacy;
+    private final Message incoming = new Message();
+    private final Message outgoing = new Message();
+    private ByteBuffer out = ByteBuffer.allocate(OUT_BUF_SIZE); // grows for long messages
+}
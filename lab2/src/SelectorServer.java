@@ -0,0 +1,519 @@
+import com.sun.management.UnixOperatingSystemMXBean;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Upload server engine serving all connections with non-blocking channels on a few IO threads.
+// Each IO thread owns a selector and drives state machines of its connections:
+//   READ_HEADER - file info message is collected
+//   STARTING    - upload is started by a disk worker, then file info is answered
+//   READ_BODY   - file data is written to the part file as it arrives
+//   STORING     - complete file is checked and stored by a disk worker
+//   DONE        - final status is being sent, connection is closed after it
+// Work that waits for disk - starting, checkpointing, storing and suspending uploads - is done by disk
+// workers, so one slow disk doesn't stall all connections of the IO thread. Connection doesn't read while
+// its upload is started or stored, worker hands the result back to the IO thread which re-arms the key.
+// Checkpoints are written while data keeps coming, writes of data itself only fill the page cache.
+// Responses that don't fit into the socket buffer are finished when it becomes writable.
+// Connections over MAX_CONNECTIONS get BUSY status with suggested retry delay and are closed at once.
+// Fewer are served if the limit of open files of the process can't hold files of as many.
+// Connection which has to wait for traffic shaper stops reading until the loop resumes it.
+// Only single stream uploads are served: file info asking for parallel one is answered without
+// upload id, so client falls back to a single stream. Batch is refused, client uploads its files one by one.
+// Downloads and skipping uploads of stored content are left to blocking engines: announced hash only
+// checks the received file
+class SelectorServer {
+    private static final int MAX_CONNECTIONS = 10000;
+    // each connection holds its socket, the part file and the reader of ContentHasher
+    private static final int FILES_PER_CONNECTION = 3;
+    private static final int RESERVED_FILES = 256; // for the JVM, listening socket and selectors
+    private static final long RETRY_AFTER = 1000; // in milliseconds
+
+    // body is read through a buffer shared by connections of the IO thread, header through own small one
+    private static final int BUF_SIZE = 256 * 1024;
+    private static final int HEADER_BUF_SIZE = 1024;
+    private static final int MAX_HEADER_LEN = 64 * 1024;
+    private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private static final int DISK_WORKERS = 8;
+    private static final ExecutorService diskWorkers = Executors.newFixedThreadPool(DISK_WORKERS, task -> {
+        Thread thread = new Thread(task, "disk");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private enum State {READ_HEADER, STARTING, READ_BODY, STORING, DONE}
+
+    // blocking file system work run by disk workers
+    private interface DiskWork<T> {
+        T run() throws IOException;
+    }
+
+    // continues connection on its IO thread with result of disk work, or the error it failed with
+    private interface Continuation<T> {
+        void run(T result, IOException error) throws IOException;
+    }
+
+    private SelectorServer() {}
+
+    // accepts connections of bound server channel in the calling thread, never returns normally
+    static void run(ServerSocketChannel serverChannel, int ioThreads, TrafficShaper shaper) throws IOException {
+        int maxConnections = getMaxConnections();
+        if (maxConnections < MAX_CONNECTIONS) {
+            System.out.println("Limit of open files allows " + maxConnections + " connections at once");
+        }
+        AtomicInteger connections = new AtomicInteger();
+        IoLoop[] loops = new IoLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new IoLoop(connections, shaper);
+            Thread thread = new Thread(loops[i], "io-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        for (int next = 0; ; next = (next + 1) % ioThreads) {
+            SocketChannel clientChannel = serverChannel.accept();
+            if (connections.incrementAndGet() > maxConnections) {
+                connections.decrementAndGet();
+                Server.rejectBusy(clientChannel, RETRY_AFTER);
+                continue;
+            }
+            loops[next].add(clientChannel);
+        }
+    }
+
+    // MAX_CONNECTIONS, or as many as the limit of open files allows if it's lower
+    private static int getMaxConnections() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (!(os instanceof UnixOperatingSystemMXBean))
+            return MAX_CONNECTIONS;
+        long maxFiles = ((UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount();
+        return (int) Math.max(Math.min((maxFiles - RESERVED_FILES) / FILES_PER_CONNECTION, MAX_CONNECTIONS), 1);
+    }
+
+    private static class IoLoop implements Runnable {
+        IoLoop(AtomicInteger connections, TrafficShaper shaper) throws IOException {
+            this.connections = connections;
+            this.shaper = shaper;
+            selector = Selector.open();
+        }
+
+        // hands accepted connection over to this loop
+        void add(SocketChannel channel) {
+            newChannels.add(channel);
+            selector.wakeup();
+        }
+
+        // runs task on the IO thread of this loop, disk workers hand results back through it
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    if (paused.isEmpty()) {
+                        selector.select();
+                    } else {
+                        long timeout = TimeUnit.NANOSECONDS.toMillis(paused.peek().resumeTime - System.nanoTime());
+                        selector.select(Math.max(timeout, 1));
+                    }
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                    return;
+                }
+
+                for (long now = System.nanoTime(); !paused.isEmpty() && paused.peek().resumeTime <= now; ) {
+                    paused.poll().resumeReading();
+                }
+
+                for (SocketChannel channel = newChannels.poll(); null != channel; channel = newChannels.poll()) {
+                    Connection connection = new Connection(channel, this);
+                    try {
+                        channel.configureBlocking(false);
+                        Server.enableKeepAlive(channel);
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    } catch (IOException e) {
+                        System.err.println(e.getMessage());
+                        connection.close();
+                    }
+                }
+
+                for (Runnable task = tasks.poll(); null != task; task = tasks.poll()) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        connection.handle();
+                    } catch (IOException e) {
+                        connection.fail(e);
+                    }
+                }
+            }
+        }
+
+        private final AtomicInteger connections;
+        private final TrafficShaper shaper;
+        private final Selector selector;
+        // connections waiting for traffic shaper, by time of resuming
+        private final PriorityQueue<Connection> paused =
+                new PriorityQueue<>((a, b) -> Long.compare(a.resumeTime, b.resumeTime));
+        private final ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUF_SIZE);
+    }
+
+    private static class Connection {
+        Connection(SocketChannel channel, IoLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+            Socket socket = channel.socket();
+            addressString = "[" + socket.getInetAddress().toString() + ":" + socket.getPort() + "]";
+            flow = loop.shaper.open(socket.getInetAddress(), addressString);
+        }
+
+        void handle() throws IOException {
+            if (key.isValid() && key.isReadable()) {
+                if (State.READ_HEADER == state) {
+                    readHeader();
+                } else if (State.READ_BODY == state) {
+                    readBody();
+                }
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+        }
+
+        void fail(IOException e) {
+            UploadMetrics.connectionError();
+            System.err.println(addressString + " " + e.getMessage() + ". Aborting connection");
+            close();
+        }
+
+        void close() {
+            if (closed)
+                return;
+
+            closed = true;
+            loop.connections.decrementAndGet();
+            flow.close();
+            if (null != key) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+            if (null != upload && State.DONE != state) {
+                suspendUpload();
+            }
+        }
+
+        private void suspendUpload() {
+            ChunkedUpload suspended = upload;
+            diskWorkers.execute(() -> {
+                try {
+                    if (suspended.suspend()) {
+                        System.err.println(addressString + " upload of " + suspended.getName() + " suspended at "
+                                + suspended.getReceivedPrefix() + " bytes");
+                    }
+                } catch (IOException e) {
+                    System.err.println(e.getMessage());
+                }
+            });
+        }
+
+        private void readHeader() throws IOException {
+            if (!header.hasRemaining()) {
+                if (header.capacity() >= MAX_HEADER_LEN) {
+                    UploadMetrics.connectionError();
+                    reply(request.status(Message.ERROR, "Invalid file info"), true);
+                    return;
+                }
+                ByteBuffer grown = ByteBuffer.allocate(Math.min(header.capacity() * 2, MAX_HEADER_LEN));
+                header.flip();
+                header = grown.put(header);
+            }
+
+            int scanned = header.position();
+            int recvNum = channel.read(header);
+            if (recvNum == -1) {
+                System.err.println(addressString + " disconnected");
+                close();
+                return;
+            }
+            pay(recvNum);
+            legacy = '{' == header.get(0); // client speaking legacy protocol starts with JSON line
+
+            // the rest of header buffer is the beginning of file data
+            header.flip();
+            if (legacy) {
+                for (int i = scanned; i < header.limit(); i++) {
+                    if (header.get(i) == '\n') {
+                        int length = (i > 0 && header.get(i - 1) == '\r') ? i - 1 : i;
+                        request.decodeJson(new String(header.array(), 0, length, StandardCharsets.UTF_8));
+                        header.position(i + 1);
+                        startUpload();
+                        return;
+                    }
+                }
+            } else if (request.decode(header)) {
+                startUpload();
+                return;
+            }
+            header.position(header.limit());
+            header.limit(header.capacity());
+        }
+
+        private void startUpload() throws IOException {
+            if (Message.RANGE == request.type || Message.COMMIT == request.type) {
+                reply(request.status(Message.ERROR, "Parallel uploads are not supported"), true);
+                return;
+            }
+            if (Message.BATCH == request.type) {
+                reply(request.status(Message.ERROR, "Batch uploads are not supported"), true);
+                return;
+            }
+            if (Message.DOWNLOAD == request.type) {
+                reply(request.status(Message.ERROR, "Downloads are not supported"), true);
+                return;
+            }
+            String filename = request.name;
+            long size = request.size;
+            String hash = request.hash;
+            boolean resume = request.resume;
+            if (Message.FILE != request.type || null == filename || size < 0
+                    || (null != hash && !ContentHasher.isValidHash(hash))) {
+                UploadMetrics.connectionError();
+                reply(request.status(Message.ERROR, "Invalid file info"), true);
+                System.err.println(addressString + " sent invalid file info. Aborting connection");
+                return;
+            }
+            System.out.println(addressString + " requested to upload file " + filename + " (" + size + " bytes)");
+            flow.setDescription("file " + filename + " (" + size + " bytes)");
+
+            state = State.STARTING;
+            offload(() -> ChunkedUpload.start(filename, size, CHUNK_SIZE, resume, hash), (started, error) -> {
+                upload = started;
+                if (closed) {
+                    if (null != upload) {
+                        suspendUpload();
+                    }
+                    return;
+                }
+                if (null != error) {
+                    reply(request.status(Message.ERROR, error.getMessage()), true);
+                    System.err.println(addressString + " unable to start upload of " + filename + ": "
+                            + error.getMessage() + ". Aborting connection");
+                    return;
+                }
+
+                received = resume ? upload.getReceivedPrefix() : 0;
+                Message response = request.status(Message.SUCCESS, "Info accepted");
+                if (resume) {
+                    response.offset = received;
+                }
+                state = State.READ_BODY;
+                reply(response, false);
+
+                ByteBuffer rest = header;
+                header = null;
+                writeBody(rest);
+                if (System.nanoTime() >= resumeTime) { // otherwise traffic shaper resumes it
+                    resumeReading();
+                }
+            });
+        }
+
+        private void readBody() throws IOException {
+            ByteBuffer buffer = loop.buffer;
+            buffer.clear();
+            if (upload.getSize() - received < buffer.capacity()) {
+                buffer.limit((int) (upload.getSize() - received)); // don't read anything after file data
+            }
+            if (flow.isLimited() && buffer.remaining() > TrafficShaper.QUANTUM) {
+                buffer.limit(TrafficShaper.QUANTUM);
+            }
+            int recvNum = channel.read(buffer);
+            if (recvNum == -1) { // unexpected end of stream
+                UploadMetrics.connectionError();
+                System.err.println(addressString + " error occurred during downloading "
+                        + upload.getName() + ". Aborting connection");
+                close();
+                return;
+            }
+            buffer.flip();
+            writeBody(buffer);
+            pay(recvNum);
+        }
+
+        // accounts received data in traffic shaper and stops reading until it allows
+        private void pay(int bytes) {
+            long delay = flow.account(bytes);
+            if (delay > 0 && isReading()) {
+                resumeTime = System.nanoTime() + delay;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                loop.paused.add(this);
+            }
+        }
+
+        private void resumeReading() {
+            if (isReading()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        private boolean isReading() {
+            return !closed && (State.READ_HEADER == state || State.READ_BODY == state);
+        }
+
+        // runs blocking work on a disk worker and continues with its result on the IO thread. Connection
+        // doesn't read meanwhile, continuation re-arms it if it goes on reading
+        private <T> void offload(DiskWork<T> work, Continuation<T> then) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            diskWorkers.execute(() -> {
+                T result = null;
+                IOException error = null;
+                try {
+                    result = work.run();
+                } catch (IOException e) {
+                    error = e;
+                }
+                T finalResult = result;
+                IOException finalError = error;
+                loop.execute(() -> {
+                    try {
+                        then.run(finalResult, finalError);
+                    } catch (IOException e) {
+                        fail(e);
+                    }
+                });
+            });
+        }
+
+        private void writeBody(ByteBuffer data) throws IOException {
+            if (data.remaining() > upload.getSize() - received) {
+                data.limit(data.position() + (int) (upload.getSize() - received));
+            }
+            while (data.hasRemaining()) {
+                received += upload.getFileChannel().write(data, received);
+            }
+            boolean checkpointDue = upload.markPrefix(received);
+
+            if (received == upload.getSize()) {
+                finishUpload();
+            } else if (checkpointDue && !checkpointing) {
+                checkpoint();
+            }
+        }
+
+        // one checkpoint at a time is written by a disk worker while the connection goes on reading
+        private void checkpoint() {
+            checkpointing = true;
+            ChunkedUpload checkpointed = upload;
+            diskWorkers.execute(() -> {
+                try {
+                    checkpointed.checkpointConcurrently();
+                } catch (IOException e) {
+                    System.err.println(addressString + " unable to checkpoint upload of " + checkpointed.getName()
+                            + ": " + e.getMessage());
+                }
+                loop.execute(() -> checkpointing = false);
+            });
+        }
+
+        private void finishUpload() {
+            state = State.STORING;
+            offload(() -> {
+                upload.commit();
+                return null;
+            }, (ignored, error) -> {
+                if (closed)
+                    return;
+                if (error instanceof FileAlreadyExistsException) {
+                    reply(request.status(Message.ERROR, "File exists"), true);
+                    System.err.println(addressString + " file " + upload.getName() + " exists. Upload aborted");
+                } else if (null != error) {
+                    reply(request.status(Message.ERROR, error.getMessage()), true);
+                    System.err.println(addressString + " unable to store " + upload.getName() + ": "
+                            + error.getMessage() + ". Upload aborted");
+                } else {
+                    reply(request.status(Message.SUCCESS, "Successful uploading"), true);
+                    System.out.println(addressString + " successfully uploaded file " + upload.getName()
+                            + " (" + upload.getSize() + " bytes)");
+                }
+            });
+        }
+
+        // queues message after unsent ones and sends as much as socket accepts. Last message stops reading
+        private void reply(Message message, boolean last) throws IOException {
+            ByteBuffer encoded = message.toBuffer(legacy);
+            if (null == out || !out.hasRemaining()) {
+                out = encoded;
+            } else {
+                ByteBuffer joined = ByteBuffer.allocate(out.remaining() + encoded.remaining());
+                out = joined.put(out).put(encoded).flip();
+            }
+            if (last) {
+                state = State.DONE;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            flush();
+        }
+
+        private void flush() throws IOException {
+            if (null != out) {
+                channel.write(out);
+            }
+            if (null != out && out.hasRemaining()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } else if (State.DONE == state) {
+                close();
+            } else {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        }
+
+        private final SocketChannel channel;
+        private final IoLoop loop;
+        private final String addressString;
+        private final TrafficShaper.Flow flow;
+        private SelectionKey key;
+        private long resumeTime; // in System.nanoTime() units, while paused
+
+        private State state = State.READ_HEADER;
+        private boolean closed = false;
+        private ByteBuffer header = ByteBuffer.allocate(HEADER_BUF_SIZE);
+        private boolean legacy;
+        private final Message request = new Message(); // answers reuse it as well
+        private ByteBuffer out; // unsent part of responses
+        private ChunkedUpload upload; // set on the IO thread once started
+        private long received;
+        private boolean checkpointing; // checkpoint of upload is being written by a disk worker
+    }
+}
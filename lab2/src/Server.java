@@ -1,36 +1,125 @@
-import org.json.JSONException;
-import org.json.JSONObject;
+import jdk.net.ExtendedSocketOptions;
 
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.time.Clock;
 import java.time.Duration;
-import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
-import static java.nio.file.StandardOpenOption.CREATE_NEW;
-import static java.nio.file.StandardOpenOption.WRITE;
+import static java.nio.file.StandardOpenOption.READ;
 
 public class Server {
     private static final int CORE_POOL_SIZE = 5;
     private static final int MAX_POOL_SIZE = 10;
     private static final int KEEP_ALIVE_TIME = 5000;
 
-    private static final int BUF_SIZE = 4096;
+    // data goes from socket to file through direct buffer, so it isn't copied to java heap
+    private static final int BUF_SIZE = 1024 * 1024;
     private static final Duration UPDATE_INTERVAL = Duration.ofMillis(3000);
 
+    // limits for parameters of parallel uploads proposed by client
+    private static final int MAX_STREAMS = 16;
+    private static final long MIN_CHUNK_SIZE = 64 * 1024;
+    private static final long MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final long DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    // connections are served by the thread pool, by SelectorServer or by a thread per connection
+    private static final String ENGINE_OPTION = "--engine=";
+    private static final String THREADS_ENGINE = "threads";
+    private static final String SELECTOR_ENGINE = "selector";
+    private static final String VIRTUAL_ENGINE = "virtual";
+    private static final int BACKLOG = 1024;
+
+    // receiving rate limits in bytes per second, for the whole server and for each client address
+    private static final String RATE_OPTION = "--rate=";
+    private static final String CLIENT_RATE_OPTION = "--client-rate=";
+    // uploads of larger files are refused
+    private static final String MAX_SIZE_OPTION = "--max-size=";
+    private static final String USAGE = "Usage: server port [" + ENGINE_OPTION + THREADS_ENGINE + "|" + SELECTOR_ENGINE
+            + "|" + VIRTUAL_ENGINE + "] [" + RATE_OPTION + "BYTES] [" + CLIENT_RATE_OPTION + "BYTES] ["
+            + MAX_SIZE_OPTION + "BYTES]";
+
+    // limits of thread per connection engine. Connection waiting for upload permit longer than
+    // ADMISSION_TIMEOUT is answered with BUSY status. Smaller buffers let thousands of connections fit
+    private static final int MAX_UPLOADS = 1000;
+    private static final int MAX_DISK_WRITERS = 8;
+    private static final long ADMISSION_TIMEOUT = 5000;
+    private static final long RETRY_AFTER = 1000;
+    private static final int THREAD_PER_CONNECTION_BUF_SIZE = 64 * 1024;
+
+    // connection of client which has vanished is found by TCP keep alive probes within about
+    // KEEP_ALIVE_IDLE + KEEP_ALIVE_COUNT * KEEP_ALIVE_PROBE_INTERVAL seconds, then its upload is suspended.
+    // Client resuming the upload before that is told to retry after IN_PROGRESS_RETRY_AFTER ms
+    private static final int KEEP_ALIVE_IDLE = 20;
+    private static final int KEEP_ALIVE_PROBE_INTERVAL = 5;
+    private static final int KEEP_ALIVE_COUNT = 3;
+    private static final long IN_PROGRESS_RETRY_AFTER = 10000;
+
+    // client announcing content which is stored already hashes this much of it to prove it has the content
+    private static final long PROOF_RANGE_LEN = 64 * 1024;
+
+    // compressed blocks are restored and written by these threads while connection threads read next ones
+    private static final int MAX_BLOCKS_IN_FLIGHT = 8;
+    private static final ExecutorService decoders = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), task -> {
+                Thread thread = new Thread(task, "decoder");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private static TrafficShaper shaper = new TrafficShaper(0, 0);
+
     public static void main(String[] args) {
         if (0 == args.length) {
             System.err.println("You need to specify listening port for server");
             return;
         }
 
+        String engine = THREADS_ENGINE;
+        long globalRate = 0;
+        long clientRate = 0;
+        long maxFileSize = ChunkedUpload.DEFAULT_MAX_FILE_SIZE;
+        try {
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].startsWith(ENGINE_OPTION)) {
+                    engine = args[i].substring(ENGINE_OPTION.length());
+                } else if (args[i].startsWith(RATE_OPTION)) {
+                    globalRate = Long.parseLong(args[i].substring(RATE_OPTION.length()));
+                } else if (args[i].startsWith(CLIENT_RATE_OPTION)) {
+                    clientRate = Long.parseLong(args[i].substring(CLIENT_RATE_OPTION.length()));
+                } else if (args[i].startsWith(MAX_SIZE_OPTION)) {
+                    maxFileSize = Long.parseLong(args[i].substring(MAX_SIZE_OPTION.length()));
+                } else {
+                    System.err.println(USAGE);
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        if (!engine.equals(THREADS_ENGINE) && !engine.equals(SELECTOR_ENGINE) && !engine.equals(VIRTUAL_ENGINE)) {
+            System.err.println("Unknown engine " + engine);
+            return;
+        }
+
         int serverPort;
         try {
             serverPort = Integer.parseInt(args[0]);
@@ -55,131 +144,623 @@ public class Server {
             }
         }
 
-        // create worker threads
-        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(
-                CORE_POOL_SIZE,
-                MAX_POOL_SIZE,
-                KEEP_ALIVE_TIME,
-                TimeUnit.MILLISECONDS,
-                new LinkedBlockingDeque<>());
+        ChunkedUpload.setMaxFileSize(maxFileSize);
+        shaper = new TrafficShaper(globalRate, clientRate);
+        shaper.startReporter(UPDATE_INTERVAL);
+        UploadMetrics.register(shaper);
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(serverPort), BACKLOG);
+            if (engine.equals(SELECTOR_ENGINE)) {
+                SelectorServer.run(serverChannel, Runtime.getRuntime().availableProcessors(), shaper);
+                return;
+            }
+            if (engine.equals(VIRTUAL_ENGINE)) {
+                runThreadPerConnection(serverChannel);
+                return;
+            }
 
-        try (ServerSocket serverSocket = new ServerSocket(serverPort)) {
+            // create worker threads
+            ThreadPoolExecutor threadPool = new ThreadPoolExecutor(
+                    CORE_POOL_SIZE,
+                    MAX_POOL_SIZE,
+                    KEEP_ALIVE_TIME,
+                    TimeUnit.MILLISECONDS,
+                    new LinkedBlockingDeque<>());
             while (true) {
-                Socket clientSocket = serverSocket.accept();
-                threadPool.execute(() -> processConnection(clientSocket));
+                SocketChannel clientChannel = serverChannel.accept();
+                threadPool.execute(() -> processConnection(clientChannel, BUF_SIZE, null));
             }
         } catch (IOException e) {
             System.err.println(e.getMessage());
         }
     }
 
-    private static void processConnection(Socket clientSocket) {
-        String addressString = "[" + clientSocket.getInetAddress().toString() + ":" + clientSocket.getPort() + "]";
+    // starts virtual thread for each connection, or platform one if JVM has no virtual threads.
+    // Semaphores bound uploads in progress and concurrent writes to disk separately
+    private static void runThreadPerConnection(ServerSocketChannel serverChannel) throws IOException {
+        if (!VirtualThreads.isSupported()) {
+            System.err.println("Virtual threads aren't supported by this JVM, using platform thread per connection");
+        }
+        ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor();
+        Semaphore uploadPermits = new Semaphore(MAX_UPLOADS);
+        Semaphore diskPermits = new Semaphore(MAX_DISK_WRITERS);
+
+        while (true) {
+            SocketChannel clientChannel = serverChannel.accept();
+            executor.execute(() -> {
+                try {
+                    if (!uploadPermits.tryAcquire(ADMISSION_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                        rejectBusy(clientChannel, RETRY_AFTER);
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    rejectBusy(clientChannel, RETRY_AFTER);
+                    return;
+                }
+                try {
+                    processConnection(clientChannel, THREAD_PER_CONNECTION_BUF_SIZE, diskPermits);
+                } finally {
+                    uploadPermits.release();
+                }
+            });
+        }
+    }
 
-        try (InputStream socketInputStream = clientSocket.getInputStream();
-             OutputStream socketOutputStream = clientSocket.getOutputStream()) {
+    // answers with BUSY status and closes connection. Answer is tiny and fits into the socket buffer
+    // of new connection, so blocking write returns at once. Protocol of the client isn't known yet,
+    // so the legacy one is used: clients recognize it by the first byte
+    static void rejectBusy(SocketChannel clientChannel, long retryAfter) {
+        try (SocketChannel channel = clientChannel) {
+            Message response = new Message().status(Message.BUSY, "Server is busy, retry later");
+            response.retry = retryAfter;
+            channel.write(response.toBuffer(true));
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+    }
 
-            BufferedReader socketBufferedReader =
-                    new BufferedReader(new InputStreamReader(socketInputStream));
-            PrintWriter socketPrintWriter =
-                    new PrintWriter(new OutputStreamWriter(socketOutputStream));
+    // failed start is answered with ERROR, unless the name is taken by an upload in progress. That one may be
+    // held by a stale connection which hasn't been found yet, so client is asked to retry
+    private static Message startError(MessageChannel messages, IOException e) {
+        if (!(e instanceof ChunkedUpload.UploadInProgressException))
+            return messages.status(Message.ERROR, e.getMessage());
+        Message response = messages.status(Message.BUSY, e.getMessage());
+        response.retry = IN_PROGRESS_RETRY_AFTER;
+        return response;
+    }
 
+    // challenges client to hash a random range of stored content with a nonce and gives it the name if
+    // the answer matches: anyone may know the hash, only the one who has the content can answer
+    private static void deduplicate(MessageChannel messages, String addressString, String filename, long size,
+                                    String hash) throws IOException {
+        String nonce = ContentHasher.newNonce();
+        long length = Math.min(size, PROOF_RANGE_LEN);
+        long offset = ContentHasher.randomLong(size - length + 1);
+        Message challenge = messages.status(Message.SUCCESS, "Content is stored, prove it");
+        challenge.skip = true;
+        challenge.hash = nonce;
+        challenge.offset = offset;
+        challenge.length = length;
+        messages.send(challenge);
 
-            // get filename and file size from client
-            String clientInfo;
-            clientInfo = socketBufferedReader.readLine();
-            if(null == clientInfo) {
+        Message proof = messages.read();
+        if (null == proof || Message.PROOF != proof.type || !ContentHasher.isValidHash(proof.hash)) {
+            UploadMetrics.connectionError();
+            messages.send(messages.status(Message.ERROR, "Invalid content proof"));
+            System.err.println(addressString + " sent invalid content proof. Aborting connection");
+            return;
+        }
+        if (!proof.hash.equals(ContentHasher.hashRange(BlobStore.getPath(hash), nonce, offset, length))) {
+            messages.send(messages.status(Message.ERROR, "Content proof mismatch"));
+            System.err.println(addressString + " failed to prove content of " + filename + ". Aborting connection");
+            return;
+        }
+
+        try {
+            ChunkedUpload.deduplicate(filename, hash);
+        } catch (IOException e) {
+            messages.send(startError(messages, e));
+            System.err.println(addressString + " unable to name stored content " + filename + ": "
+                    + e.getMessage() + ". Aborting connection");
+            return;
+        }
+        messages.send(messages.status(Message.SUCCESS, "Already uploaded"));
+        System.out.println(addressString + " file " + filename + " (" + size + " bytes) is already stored");
+    }
+
+    // used by SelectorServer too, so that its vanished clients release their uploads as well
+    static void enableKeepAlive(SocketChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        if (channel.supportedOptions().contains(ExtendedSocketOptions.TCP_KEEPIDLE)) {
+            channel.setOption(ExtendedSocketOptions.TCP_KEEPIDLE, KEEP_ALIVE_IDLE);
+            channel.setOption(ExtendedSocketOptions.TCP_KEEPINTERVAL, KEEP_ALIVE_PROBE_INTERVAL);
+            channel.setOption(ExtendedSocketOptions.TCP_KEEPCOUNT, KEEP_ALIVE_COUNT);
+        }
+    }
+
+    // disk permits, if given, are taken for each write to file
+    private static void processConnection(SocketChannel clientChannel, int bufferSize, Semaphore diskPermits) {
+        Socket clientSocket = clientChannel.socket();
+        String addressString = "[" + clientSocket.getInetAddress().toString() + ":" + clientSocket.getPort() + "]";
+        TrafficShaper.Flow flow = shaper.open(clientSocket.getInetAddress(), addressString);
+
+        try (SocketChannel channel = clientChannel) {
+            enableKeepAlive(channel);
+            ConnectionReader socketReader = new ConnectionReader(channel, bufferSize, diskPermits, flow);
+            // client speaking legacy protocol starts with JSON line
+            MessageChannel messages = new MessageChannel(channel, socketReader, '{' == socketReader.peek());
+
+            // get file info from client
+            Message fileInfo = messages.read();
+            if (null == fileInfo) {
                 System.err.println(addressString + " disconnected");
                 return;
             }
 
-            JSONObject fileInfo = new JSONObject(clientInfo);
+            if (Message.RANGE == fileInfo.type || Message.COMMIT == fileInfo.type) {
+                // connection joins parallel upload started by another one
+                flow.setDescription("ranges of file " + fileInfo.upload);
+                processRanges(socketReader, messages, addressString, fileInfo, null);
+                return;
+            }
+            if (Message.BATCH == fileInfo.type) { // connection uploads many files one after another
+                processBatch(socketReader, messages, addressString, flow);
+                return;
+            }
+            if (Message.DOWNLOAD == fileInfo.type) { // connection fetches ranges of stored files
+                processDownloads(channel, messages, addressString, fileInfo, flow);
+                return;
+            }
 
-            String filename;
-            long size;
-            try {
-                filename = fileInfo.getString("name");
-                size = fileInfo.getLong("size");
-            } catch (JSONException e) {
-                sendStatusMessage(socketPrintWriter, "ERROR", "Invalid file info");
+            String filename = fileInfo.name;
+            long size = fileInfo.size;
+            String hash = fileInfo.hash;
+            if (Message.FILE != fileInfo.type || null == filename || size < 0
+                    || (null != hash && !ContentHasher.isValidHash(hash))) {
+                UploadMetrics.connectionError();
+                messages.send(messages.status(Message.ERROR, "Invalid file info"));
                 System.err.println(addressString + " sent invalid file info. Aborting connection");
-                clientSocket.close();
                 return;
             }
             String filenameString = "file " + filename + " (" + size + " bytes)";
             System.out.println(addressString + " requested to upload " + filenameString);
+            flow.setDescription(filenameString);
+
+            // content client is going to upload may be stored already, then it only gets the name
+            if (null != hash && BlobStore.contains(hash, size)) {
+                deduplicate(messages, addressString, filename, size, hash);
+                return;
+            }
+
+            if (fileInfo.streams > 1) {
+                startChunkedUpload(socketReader, messages, addressString, fileInfo);
+                return;
+            }
 
-            // create file and stream on it
-            Path filePath = Paths.get("./uploads/" + filename);
-            OutputStream fileOutputStream;
+            // register upload, its part file is extended to announced size at once
+            // instead of by each write
+            boolean resume = fileInfo.resume;
+            boolean compressed = BlockCodec.DEFLATE.equals(fileInfo.codec);
+            ChunkedUpload upload;
             try {
-                fileOutputStream = Files.newOutputStream(filePath, CREATE_NEW, WRITE);
+                upload = ChunkedUpload.start(filename, size, (int) DEFAULT_CHUNK_SIZE, resume, hash);
             } catch (IOException e) {
-                sendStatusMessage(socketPrintWriter, "ERROR", "File exists");
-                System.err.println(addressString + " file " + filename + " exists. Aborting connection");
-                clientSocket.close();
+                messages.send(startError(messages, e));
+                System.err.println(addressString + " unable to start upload of " + filename + ": " + e.getMessage()
+                        + ". Aborting connection");
                 return;
             }
 
-            sendStatusMessage(socketPrintWriter, "SUCCESS", "Info accepted");
+            try {
+                receiveFile(socketReader, messages, addressString, filenameString, upload, resume, compressed);
+            } finally {
+                if (upload.suspend()) {
+                    System.err.println(addressString + " upload of " + filename + " suspended at "
+                            + upload.getReceivedPrefix() + " bytes");
+                }
+            }
 
-            Clock clock = Clock.systemUTC(); // init clocks to calculate uploading speed
-            Instant beginning = clock.instant();
+        } catch (IOException e) {
+            UploadMetrics.connectionError();
+            System.err.println(addressString + " " + e.getMessage() + ". Aborting connection");
+        } finally {
+            flow.close();
+        }
+
+    }
+
+    // receives data of upload in a single stream, starting from the offset told to client if it resumes.
+    // Compressed data is accepted if client has asked for it
+    private static void receiveFile(ConnectionReader socketReader, MessageChannel messages,
+                                    String addressString, String filenameString, ChunkedUpload upload,
+                                    boolean resume, boolean compressed) throws IOException {
+        long size = upload.getSize();
+        long offset = resume ? upload.getReceivedPrefix() : 0;
+
+        Message response = messages.status(Message.SUCCESS, "Info accepted");
+        if (resume) {
+            response.offset = offset;
+            if (offset > 0) {
+                System.out.println(addressString + " resumes " + filenameString + " from " + offset + " bytes");
+            }
+        }
+        if (compressed) {
+            response.codec = BlockCodec.DEFLATE;
+        }
+        messages.send(response);
 
-            // download and save file data
-            long remain = size;
-            int recvNum;
-            byte[] buffer = new byte[BUF_SIZE];
+        long beginning = System.nanoTime();
 
-            Instant lastCheckInstant = beginning;
-            long lastUploadedSize = 0;
+        // download and save file data, its rate is reported by traffic shaper
+        long remain = size - offset;
+        long recvNum;
 
-            while (remain > 0)  {
-                recvNum = socketInputStream.read(buffer, 0, buffer.length);
-                if (recvNum == -1) { // unexpected end of stream
-                    System.err.println(addressString + " error occurred during downloading "
-                            + filename + ". Aborting connection");
-                    clientSocket.close();
-                    // remove corrupted file
-                    Files.delete(filePath);
+        if (compressed) {
+            long receivedSize = receiveBlocks(socketReader, upload, offset);
+            remain = 0; // whole file has been written
+            System.out.println(addressString + " received " + filenameString + " compressed to "
+                    + receivedSize + " bytes");
+        }
+
+        while (remain > 0)  {
+            recvNum = socketReader.readToFile(upload.getFileChannel(), size - remain, remain);
+            if (recvNum == -1) { // unexpected end of stream
+                UploadMetrics.connectionError();
+                System.err.println(addressString + " error occurred during downloading "
+                        + upload.getName() + ". Aborting connection");
+                return;
+            }
+            remain -= recvNum;
+            upload.prefixReceived(size - remain);
+        }
+
+        try {
+            upload.commit();
+        } catch (FileAlreadyExistsException e) {
+            messages.send(messages.status(Message.ERROR, "File exists"));
+            System.err.println(addressString + " file " + upload.getName() + " exists. Upload aborted");
+            return;
+        } catch (IOException e) {
+            messages.send(messages.status(Message.ERROR, e.getMessage()));
+            System.err.println(addressString + " unable to store " + upload.getName() + ": " + e.getMessage()
+                    + ". Upload aborted");
+            return;
+        }
+        double averageSpeed = (size - offset) * (double) TimeUnit.SECONDS.toNanos(1)
+                / Math.max(System.nanoTime() - beginning, 1);
+
+        // send response and print log
+        messages.send(messages.status(Message.SUCCESS, "Successful uploading"));
+        System.out.printf("%s successfully uploaded %s. Average speed: %.0f bytes/sec%n", addressString,
+                filenameString, averageSpeed);
+    }
+
+    // receives frames of compressed upload body starting from offset. Blocks are restored and written
+    // by decoders while next frames are being read, and are marked as received in order.
+    // Returns number of received bytes
+    private static long receiveBlocks(ConnectionReader in, ChunkedUpload upload, long offset) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(BlockCodec.HEADER_LEN);
+        ArrayDeque<Future<Long>> inFlight = new ArrayDeque<>(); // each gives the end of its block
+        long position = offset;
+        long receivedSize = 0;
+        try {
+            while (position < upload.getSize()) {
+                header.clear();
+                in.readFully(header);
+                int rawLength = header.getInt(0);
+                int storedLength = header.getInt(Integer.BYTES);
+                byte method = header.get(2 * Integer.BYTES);
+                if (rawLength <= 0 || rawLength > BlockCodec.BLOCK_SIZE || rawLength > upload.getSize() - position
+                        || storedLength < 0 || storedLength > BlockCodec.BLOCK_SIZE) {
+                    throw new IOException("Invalid block");
+                }
+
+                ByteBuffer data = ByteBuffer.allocate(storedLength);
+                in.readFully(data);
+                data.flip();
+                receivedSize += BlockCodec.HEADER_LEN + storedLength;
+
+                long blockPosition = position;
+                position += rawLength;
+                inFlight.add(decoders.submit(() -> {
+                    ByteBuffer raw = ByteBuffer.allocate(rawLength);
+                    BlockCodec.decode(method, data, raw);
+                    raw.flip();
+                    in.writeToFile(upload.getFileChannel(), raw, blockPosition);
+                    return blockPosition + rawLength;
+                }));
+
+                while (!inFlight.isEmpty() && (inFlight.peek().isDone() || inFlight.size() > MAX_BLOCKS_IN_FLIGHT)) {
+                    upload.prefixReceived(getBlockEnd(inFlight.poll()));
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                upload.prefixReceived(getBlockEnd(inFlight.poll()));
+            }
+        } finally {
+            // nothing may be written after the upload is suspended
+            for (Future<Long> block : inFlight) {
+                try {
+                    block.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    // upload is failed already
+                }
+            }
+        }
+        return receivedSize;
+    }
+
+    private static long getBlockEnd(Future<Long> block) throws IOException {
+        try {
+            return block.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    // negotiates parameters of parallel upload and serves its ranges sent through this connection
+    private static void startChunkedUpload(ConnectionReader in, MessageChannel messages, String addressString,
+                                           Message fileInfo) throws IOException {
+        String filename = fileInfo.name;
+        boolean resume = fileInfo.resume;
+        int streams = Math.min(fileInfo.streams, MAX_STREAMS);
+        long chunkSize = Math.max(MIN_CHUNK_SIZE,
+                Math.min((fileInfo.chunk > 0) ? fileInfo.chunk : DEFAULT_CHUNK_SIZE, MAX_CHUNK_SIZE));
+
+        ChunkedUpload upload;
+        try {
+            upload = ChunkedUpload.start(filename, fileInfo.size, (int) chunkSize, resume, fileInfo.hash);
+        } catch (IOException e) {
+            messages.send(startError(messages, e));
+            System.err.println(addressString + " unable to start upload of " + filename + ": " + e.getMessage()
+                    + ". Aborting connection");
+            return;
+        }
+
+        Message response = messages.status(Message.SUCCESS, "Info accepted");
+        response.upload = upload.getName();
+        response.streams = streams;
+        response.chunk = upload.getChunkSize(); // resumed upload keeps its chunk size
+        if (resume) {
+            response.offset = upload.getReceivedPrefix();
+        }
+        messages.send(response);
+        System.out.println(addressString + " uploads " + filename + " in " + streams + " streams by "
+                + upload.getChunkSize() + " bytes chunks");
+        if (upload.getReceivedPrefix() > 0) {
+            System.out.println(addressString + " resumes " + filename + " from " + upload.getReceivedPrefix()
+                    + " bytes");
+        }
+
+        processRanges(in, messages, addressString, messages.read(), upload);
+    }
+
+    // serves range and commit requests of parallel uploads, starting from given one, until connection
+    // closes. If connection controls an upload (has started it) and closes without commit, upload is suspended
+    private static void processRanges(ConnectionReader in, MessageChannel messages, String addressString,
+                                      Message request, ChunkedUpload controlledUpload) throws IOException {
+        try {
+            for (; null != request; request = messages.read()) {
+                if ((Message.RANGE != request.type && Message.COMMIT != request.type) || null == request.upload)
+                    throw new IOException("Invalid range request");
+                ChunkedUpload upload = ChunkedUpload.find(request.upload);
+                if (null == upload) {
+                    messages.send(messages.status(Message.ERROR, "No such upload"));
+                    return;
+                }
+
+                if (Message.COMMIT == request.type) {
+                    int missing = upload.missingChunks();
+                    if (missing > 0) {
+                        messages.send(messages.status(Message.ERROR, missing + " chunks are missing"));
+                        continue;
+                    }
+                    try {
+                        upload.commit();
+                    } catch (FileAlreadyExistsException e) {
+                        messages.send(messages.status(Message.ERROR, "File exists"));
+                        System.err.println(addressString + " file " + upload.getName() + " exists. Upload aborted");
+                        return;
+                    } catch (IOException e) {
+                        messages.send(messages.status(Message.ERROR, e.getMessage()));
+                        System.err.println(addressString + " unable to store " + upload.getName() + ": "
+                                + e.getMessage() + ". Upload aborted");
+                        return;
+                    }
+                    messages.send(messages.status(Message.SUCCESS, "Successful uploading"));
+                    System.out.println(addressString + " successfully uploaded file " + upload.getName()
+                            + " (" + upload.getSize() + " bytes)");
+                    continue;
+                }
+
+                long offset = request.offset;
+                long length = request.length;
+                if (!upload.isValidRange(offset, length)) {
+                    messages.send(messages.status(Message.ERROR, "Invalid range"));
                     return;
                 }
-                fileOutputStream.write(buffer, 0, recvNum);
-                remain -= recvNum;
 
-                // need to print new instant speed
-                Duration deltaTime = Duration.between(lastCheckInstant, clock.instant());
-                if (deltaTime.compareTo(UPDATE_INTERVAL) > 0) {
-                    long deltaUploadedSize = size - remain - lastUploadedSize;
-                    long instantSpeed = deltaUploadedSize / deltaTime.toMillis() * 1000;
-                    System.out.println(addressString + " uploading file " + filenameString +
-                            ". Uploading speed: " + instantSpeed + " bytes/sec");
-                    lastUploadedSize = deltaUploadedSize;
-                    lastCheckInstant = clock.instant();
+                for (long received = 0; received < length; ) {
+                    long recvNum = in.readToFile(upload.getFileChannel(), offset + received, length - received);
+                    if (recvNum == -1) { // unexpected end of stream
+                        UploadMetrics.connectionError();
+                        System.err.println(addressString + " error occurred during downloading range of "
+                                + upload.getName() + ". Aborting connection");
+                        return;
+                    }
+                    received += recvNum;
                 }
+                upload.chunkReceived(offset);
+                messages.send(messages.status(Message.SUCCESS, "Range accepted"));
+            }
+        } finally {
+            if (null != controlledUpload && controlledUpload.suspend()) {
+                System.err.println(addressString + " upload of " + controlledUpload.getName() + " suspended with "
+                        + controlledUpload.missingChunks() + " chunks missing");
             }
+        }
+    }
 
-            Instant ending = clock.instant();
-            long averageSpeed = size / Duration.between(beginning, ending).toMillis() * 1000;
+    // receives files sent one after another without waiting for replies. Each file is acknowledged with
+    // its sequence number when it's stored or refused, replies are flushed only when no more data has
+    // been read ahead, so a burst of small files is answered by a single write
+    private static void processBatch(ConnectionReader in, MessageChannel messages, String addressString,
+                                     TrafficShaper.Flow flow) throws IOException {
+        messages.send(messages.status(Message.SUCCESS, "Batch accepted"));
+        int uploaded = 0;
+        int failed = 0;
+        try {
+            for (Message fileInfo = messages.read(); null != fileInfo; fileInfo = messages.read()) {
+                long seq = fileInfo.seq;
+                String filename = fileInfo.name;
+                long size = fileInfo.size;
+                String hash = fileInfo.hash;
+                if (Message.BATCH_FILE != fileInfo.type || null == filename || size < 0
+                        || (null != hash && !ContentHasher.isValidHash(hash)))
+                    throw new IOException("Invalid file info"); // data of the file can't be told apart
+                if (seq != uploaded + failed) // files are numbered from 0 in order they are sent
+                    throw new IOException("File of batch is out of order");
+                flow.setDescription("file " + filename + " (" + size + " bytes) of batch");
 
-            // send response and print log
-            sendStatusMessage(socketPrintWriter, "SUCCESS", "Successful uploading");
-            clientSocket.close();
-            System.out.println(addressString + " successfully uploaded " + filenameString +
-                    ". Average speed: " + averageSpeed + " bytes/sec");
+                String error = receiveBatchFile(in, filename, size, hash);
+                Message response = (null == error) ? messages.status(Message.SUCCESS, "Successful uploading")
+                        : messages.status(Message.ERROR, error);
+                response.seq = seq;
+                messages.queue(response);
+                if (null == error) {
+                    uploaded++;
+                } else {
+                    failed++;
+                    System.err.println(addressString + " unable to upload " + filename + " of batch: " + error);
+                }
+                if (!in.hasBufferedData()) {
+                    messages.flush();
+                }
+            }
+            messages.flush();
+        } catch (IOException e) {
+            try {
+                messages.flush(); // files stored before the failure are acknowledged still
+            } catch (IOException flushError) {
+                e.addSuppressed(flushError);
+            }
+            throw e;
+        } finally {
+            System.out.println(addressString + " uploaded " + uploaded + " files of batch, " + failed + " failed");
+        }
+    }
 
+    // receives file of batch, returns null if it has been stored or the reason why it hasn't.
+    // Data of file that can't be uploaded is skipped
+    private static String receiveBatchFile(ConnectionReader in, String filename, long size, String hash)
+            throws IOException {
+        ChunkedUpload upload;
+        try {
+            upload = ChunkedUpload.start(filename, size, (int) DEFAULT_CHUNK_SIZE, false, hash);
         } catch (IOException e) {
-            System.err.println(e.getMessage());
+            in.skip(size);
+            return e.getMessage();
         }
 
+        try {
+            for (long received = 0; received < size; ) {
+                long recvNum = in.readToFile(upload.getFileChannel(), received, size - received);
+                if (recvNum == -1)
+                    throw new EOFException("Unexpected end of stream");
+                received += recvNum;
+                upload.prefixReceived(received);
+            }
+            try {
+                upload.commit();
+            } catch (FileAlreadyExistsException e) {
+                return "File exists";
+            } catch (IOException e) {
+                return e.getMessage();
+            }
+            return null;
+        } finally {
+            upload.abort(); // batch isn't resumed, so data of interrupted file is removed
+        }
     }
 
-    private static void sendStatusMessage(PrintWriter out, String status, String details) throws IOException {
-        JSONObject errorInfo = new JSONObject();
-        errorInfo.put("status", status);
-        errorInfo.put("details", details);
+    // serves ranges of stored files, starting from given request, until connection closes. Ranges follow
+    // HTTP byte ranges: without offset the last length bytes are sent, without length the rest of file
+    // from offset, without both the whole file. Range starting at the end of file is empty rather than
+    // unsatisfiable, so that size of any file can be asked for. Reply tells size of file, offset and length
+    // of the range, and its data follows at once. Data is sent by transferTo, so kernel moves file pages
+    // straight to the socket. Refused requests don't close connection, as no data follows them
+    private static void processDownloads(SocketChannel channel, MessageChannel messages, String addressString,
+                                         Message request, TrafficShaper.Flow flow) throws IOException {
+        FileChannel file = null;
+        String filename = null; // of open file, consecutive ranges of the same file are read through one channel
+        int served = 0;
+        long sentBytes = 0;
+        try {
+            for (; null != request; request = messages.read()) {
+                if (Message.DOWNLOAD != request.type)
+                    throw new IOException("Invalid download request");
+                if (null == filename || !filename.equals(request.name)) {
+                    if (null != file) {
+                        file.close();
+                        file = null;
+                        filename = null;
+                    }
+                    Path filePath = ChunkedUpload.findStored(request.name);
+                    if (null == filePath) {
+                        messages.send(messages.status(Message.ERROR, "No such file"));
+                        continue;
+                    }
+                    try {
+                        file = FileChannel.open(filePath, READ);
+                    } catch (IOException e) {
+                        messages.send(messages.status(Message.ERROR, e.getMessage()));
+                        continue;
+                    }
+                    filename = request.name;
+                    flow.setDescription("downloads of file " + filename);
+                }
+
+                long size = file.size();
+                long offset = request.offset;
+                long length = request.length;
+                if (offset < 0) {
+                    offset = (length < 0) ? 0 : Math.max(size - length, 0);
+                }
+                if (offset > size) {
+                    Message response = messages.status(Message.ERROR, "Range not satisfiable");
+                    response.size = size;
+                    messages.send(response);
+                    continue;
+                }
+                if (length < 0 || length > size - offset) {
+                    length = size - offset;
+                }
 
-        out.println(errorInfo.toString());
-        out.flush();
+                Message response = messages.status(Message.SUCCESS, "Range follows");
+                response.size = size;
+                response.offset = offset;
+                response.length = length;
+                messages.send(response);
+                for (long sent = 0; sent < length; ) {
+                    long sndNum = file.transferTo(offset + sent, length - sent, channel);
+                    if (sndNum <= 0)
+                        throw new EOFException("File " + filename + " was truncated");
+                    sent += sndNum;
+                }
+                UploadMetrics.rangeDownloaded(length);
+                served++;
+                sentBytes += length;
+            }
+        } finally {
+            if (null != file) {
+                file.close();
+            }
+            System.out.println(addressString + " downloaded " + served + " ranges, " + sentBytes + " bytes");
+        }
     }
 }
@@ -0,0 +1,237 @@
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Limits receiving rate of the server as a whole and of each remote address with token buckets,
+// and keeps live rates of connections. Connections pay for data after reading it: a bucket may go
+// into debt, and the connection doesn't read again until the debt is repaid. Debts of concurrent
+// connections queue up, so if each of them reads at most QUANTUM bytes at once they get equal
+// shares of the rate, and a huge upload can't starve small ones.
+// Rate of each connection is an exponentially weighted moving average, updated at most each RATE_TICK
+// by the connection's own thread without allocating, so it may be read by reporters at any time.
+// Zero rate means no limit
+class TrafficShaper {
+    static final int QUANTUM = 64 * 1024;
+    // bucket holds tokens for this time at most, so idle connections can't save up for a long burst
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // rate of the last RATE_TICK gets weight of 1 - exp(-RATE_TICK / RATE_TAU)
+    private static final long RATE_TICK = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final double RATE_TAU = TimeUnit.SECONDS.toNanos(1);
+
+    TrafficShaper(long globalRate, long addressRate) {
+        global = (globalRate > 0) ? new TokenBucket(globalRate) : null;
+        this.addressRate = addressRate;
+    }
+
+    boolean isLimited() {
+        return null != global || addressRate > 0;
+    }
+
+    // registers connection from address, flow must be closed after the connection
+    Flow open(InetAddress address, String addressString) {
+        AddressBucket addressBucket = null;
+        if (addressRate > 0) {
+            addressBucket = addressBuckets.compute(address, (key, bucket) -> {
+                if (null == bucket) {
+                    bucket = new AddressBucket(new TokenBucket(addressRate));
+                }
+                bucket.flows++;
+                return bucket;
+            });
+        }
+        Flow flow = new Flow(address, addressString, addressBucket);
+        flows.add(flow);
+        return flow;
+    }
+
+    int getFlowCount() {
+        return flows.size();
+    }
+
+    long getReceivedBytes() {
+        return received.sum();
+    }
+
+    // total rate of all connections, bytes per second
+    double getRate() {
+        long now = System.nanoTime();
+        double rate = 0;
+        for (Flow flow : flows) {
+            rate += flow.getRate(now);
+        }
+        return rate;
+    }
+
+    // lines with rates of connections transferring files
+    String[] describeRates() {
+        long now = System.nanoTime();
+        List<String> rates = new ArrayList<>();
+        for (Flow flow : flows) {
+            String transfer = flow.description;
+            if (null != transfer) {
+                rates.add(String.format("%s %s: %.0f bytes/sec", flow.addressString, transfer, flow.getRate(now)));
+            }
+        }
+        return rates.toArray(new String[0]);
+    }
+
+    // prints rates of connections transferring files each interval, in a daemon thread
+    void startReporter(Duration interval) {
+        Thread reporter = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(interval.toMillis());
+                    long now = System.nanoTime();
+                    for (Flow flow : flows) {
+                        flow.report(now);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            }
+        }, "rate-reporter");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    // received data of one connection
+    class Flow {
+        private Flow(InetAddress address, String addressString, AddressBucket addressBucket) {
+            this.address = address;
+            this.addressString = addressString;
+            this.addressBucket = addressBucket;
+            rateTime = System.nanoTime();
+        }
+
+        // description of transfer shown with the rate, connection without it isn't reported
+        void setDescription(String description) {
+            this.description = description;
+        }
+
+        boolean isLimited() {
+            return TrafficShaper.this.isLimited();
+        }
+
+        // accounts received bytes and returns time in nanoseconds to wait before next read
+        long account(int bytes) {
+            if (0 == bytes)
+                return 0;
+
+            long now = System.nanoTime();
+            received.add(bytes);
+            tickBytes += bytes;
+            if (now - rateTime >= RATE_TICK) {
+                rate = smoothRate(rate, tickBytes, now - rateTime);
+                tickBytes = 0;
+                rateTime = now;
+            }
+            if (!isLimited())
+                return 0;
+
+            long delay = 0;
+            if (null != global) {
+                delay = global.take(bytes, now);
+            }
+            if (null != addressBucket) {
+                delay = Math.max(delay, addressBucket.bucket.take(bytes, now));
+            }
+            return delay;
+        }
+
+        // accounts received bytes and waits as long as needed, for blocking connections
+        void accountAndWait(int bytes) throws InterruptedIOException {
+            long delay = account(bytes);
+            if (delay > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        void close() {
+            if (!flows.remove(this))
+                return;
+
+            if (null != addressBucket) {
+                addressBuckets.computeIfPresent(address, (key, bucket) -> (--bucket.flows > 0) ? bucket : null);
+            }
+        }
+
+        // smoothed rate in bytes per second. Bytes of unfinished tick are counted if it's over,
+        // so rate of a stalled connection decays
+        private double getRate(long now) {
+            long elapsed = now - rateTime;
+            return (elapsed >= RATE_TICK) ? smoothRate(rate, tickBytes, elapsed) : rate;
+        }
+
+        private void report(long now) {
+            String transfer = description;
+            if (null != transfer) {
+                System.out.printf("%s uploading %s. Uploading speed: %.0f bytes/sec%n", addressString, transfer,
+                        getRate(now));
+            }
+        }
+
+        private final InetAddress address;
+        private final String addressString;
+        private final AddressBucket addressBucket;
+        private volatile String description;
+
+        // written by the connection's thread only
+        private volatile double rate = 0;
+        private volatile long tickBytes = 0;
+        private volatile long rateTime; // start of current tick, in System.nanoTime() units
+    }
+
+    // moves rate towards the rate of bytes received during elapsed nanoseconds
+    private static double smoothRate(double rate, long bytes, long elapsed) {
+        double instant = bytes * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+        return rate + (1 - Math.exp(-elapsed / RATE_TAU)) * (instant - rate);
+    }
+
+    // Token bucket of rate bytes per second, holding tokens for BURST_NANOS at most
+    private static class TokenBucket {
+        TokenBucket(long rate) {
+            this.rate = rate;
+            capacity = Math.max(rate * BURST_NANOS / TimeUnit.SECONDS.toNanos(1), QUANTUM);
+            tokens = capacity;
+            lastRefill = System.nanoTime();
+        }
+
+        // takes amount tokens, returns time in nanoseconds until the bucket is out of debt
+        synchronized long take(long amount, long now) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * (double) rate / TimeUnit.SECONDS.toNanos(1));
+            lastRefill = now;
+            tokens -= amount;
+            return (tokens >= 0) ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / rate);
+        }
+
+        private final long rate;
+        private final long capacity;
+        private double tokens;
+        private long lastRefill;
+    }
+
+    private static class AddressBucket {
+        AddressBucket(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+
+        final TokenBucket bucket;
+        int flows = 0; // changed under lock of the map entry
+    }
+
+    private final TokenBucket global;
+    private final long addressRate;
+    private final ConcurrentHashMap<InetAddress, AddressBucket> addressBuckets = new ConcurrentHashMap<>();
+    private final Set<Flow> flows = ConcurrentHashMap.newKeySet();
+    private final LongAdder received = new LongAdder();
+}
@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+// Compares upload throughput of transferTo and direct buffer paths of the client against a local
+// server started in the same process (its files go to ./uploads and are removed afterwards, blobs of
+// their content too). Server hashes each upload before storing it, so SHA-256 throughput of the file
+// is reported as well: upload can't be faster than that.
+//   java UploadBenchmark [file sizes in megabytes...]
+public class UploadBenchmark {
+    private static final int[] DEFAULT_SIZES = {1, 16, 128, 1024}; // in megabytes
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = DEFAULT_SIZES;
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); // mute server logs
+
+        Thread serverThread = new Thread(() -> Server.main(new String[]{String.valueOf(port)}));
+        serverThread.setDaemon(true);
+        serverThread.start();
+        Thread.sleep(500);
+
+        InetSocketAddress serverAddress = new InetSocketAddress("localhost", port);
+        Path tmpDir = Files.createTempDirectory("upload-benchmark");
+
+        out.println("size, MB | transferTo, MB/s | direct buffer, MB/s | SHA-256, MB/s");
+        for (int size : sizes) {
+            Path file = createFile(tmpDir, size);
+            double transferTo = measure(file, serverAddress, true);
+            double directBuffer = measure(file, serverAddress, false);
+            double hashing = measureHashing(file);
+            out.printf("%8d | %17.1f | %19.1f | %13.1f%n", size, transferTo, directBuffer, hashing);
+            // content is random, so no later upload refers to the blob
+            Files.delete(Paths.get("./uploads/.blobs/" + Client.hashFile(file)));
+            Files.delete(file);
+        }
+        Files.delete(tmpDir);
+        System.exit(0); // server threads are still running
+    }
+
+    // returns the best of RUNS uploads in megabytes per second
+    private static double measure(Path file, InetSocketAddress serverAddress, boolean useTransferTo)
+            throws IOException {
+        double best = 0;
+        Path uploaded = Paths.get("./uploads/" + file.getFileName());
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            Client.Options options = new Client.Options();
+            options.useTransferTo = useTransferTo;
+            Client.upload(file, serverAddress, options);
+            long elapsed = System.nanoTime() - start;
+            Files.delete(uploaded);
+
+            best = Math.max(best, Files.size(file) / (1024.0 * 1024.0) / (elapsed / 1e9));
+        }
+        return best;
+    }
+
+    // returns the best of RUNS hashings of file in megabytes per second
+    private static double measureHashing(Path file) throws IOException {
+        double best = 0;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            Client.hashFile(file);
+            long elapsed = System.nanoTime() - start;
+            best = Math.max(best, Files.size(file) / (1024.0 * 1024.0) / (elapsed / 1e9));
+        }
+        return best;
+    }
+
+    private static Path createFile(Path dir, int megabytes) throws IOException {
+        Path file = dir.resolve("benchmark-" + megabytes + "mb.bin");
+        byte[] chunk = new byte[1024 * 1024];
+        try (FileChannel channel = FileChannel.open(file, CREATE_NEW, WRITE)) {
+            for (int i = 0; i < megabytes; i++) {
+                ThreadLocalRandom.current().nextBytes(chunk);
+                channel.write(ByteBuffer.wrap(chunk));
+            }
+        }
+        return file;
+    }
+}
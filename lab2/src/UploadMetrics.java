@@ -0,0 +1,196 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Counters and histograms of uploads, published as MBean. Recording methods are called by connection
+// threads and allocate nothing: counters are LongAdders and histograms are fixed arrays of
+// power of two buckets. Rates of connections are kept by TrafficShaper
+final class UploadMetrics implements UploadMetricsMBean {
+    private static final String OBJECT_NAME = "lab2:type=UploadMetrics";
+    private static final UploadMetrics instance = new UploadMetrics();
+
+    private UploadMetrics() {}
+
+    // publishes metrics in platform MBean server, rates are taken from shaper
+    static void register(TrafficShaper shaper) {
+        instance.shaper = shaper;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(instance, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.err.println("Unable to register metrics: " + e.getMessage());
+        }
+    }
+
+    // bytes were received in the last session of upload during nanos
+    static void uploadCompleted(long nanos, long bytes) {
+        instance.completed.increment();
+        instance.durations.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+        instance.throughputs.record((long) (bytes * (double) TimeUnit.SECONDS.toNanos(1) / Math.max(nanos, 1)));
+    }
+
+    // upload of content which had been already stored, whether its data was sent or skipped
+    static void uploadDeduplicated() {
+        instance.deduplicated.increment();
+    }
+
+    static void uploadAborted() {
+        instance.aborted.increment();
+    }
+
+    static void uploadFailed() {
+        instance.failed.increment();
+    }
+
+    static void connectionError() {
+        instance.connectionErrors.increment();
+    }
+
+    // range of stored file has been sent to client
+    static void rangeDownloaded(long bytes) {
+        instance.downloadedRanges.increment();
+        instance.sentBytes.add(bytes);
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return (null != shaper) ? shaper.getFlowCount() : 0;
+    }
+
+    @Override
+    public int getActiveUploads() {
+        return ChunkedUpload.getActiveCount();
+    }
+
+    @Override
+    public long getCompletedUploads() {
+        return completed.sum();
+    }
+
+    @Override
+    public long getDeduplicatedUploads() {
+        return deduplicated.sum();
+    }
+
+    @Override
+    public long getAbortedUploads() {
+        return aborted.sum();
+    }
+
+    @Override
+    public long getFailedUploads() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getConnectionErrors() {
+        return connectionErrors.sum();
+    }
+
+    @Override
+    public long getDownloadedRanges() {
+        return downloadedRanges.sum();
+    }
+
+    @Override
+    public long getSentBytes() {
+        return sentBytes.sum();
+    }
+
+    @Override
+    public long getReceivedBytes() {
+        return (null != shaper) ? shaper.getReceivedBytes() : 0;
+    }
+
+    @Override
+    public double getReceiveRate() {
+        return (null != shaper) ? shaper.getRate() : 0;
+    }
+
+    @Override
+    public String[] getConnectionRates() {
+        return (null != shaper) ? shaper.describeRates() : new String[0];
+    }
+
+    @Override
+    public long[] getDurationHistogram() {
+        return durations.snapshot();
+    }
+
+    @Override
+    public double getMedianDurationMillis() {
+        return durations.percentile(0.5);
+    }
+
+    @Override
+    public double getP99DurationMillis() {
+        return durations.percentile(0.99);
+    }
+
+    @Override
+    public long[] getThroughputHistogram() {
+        return throughputs.snapshot();
+    }
+
+    @Override
+    public double getMedianThroughput() {
+        return throughputs.percentile(0.5);
+    }
+
+    @Override
+    public double getP99Throughput() {
+        return throughputs.percentile(0.99);
+    }
+
+    // counts non-negative values in buckets by their highest bit
+    private static class Log2Histogram {
+        void record(long value) {
+            buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(Math.max(value, 0)));
+        }
+
+        // buckets up to the last non-empty one
+        long[] snapshot() {
+            long[] counts = new long[buckets.length()];
+            int length = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+                if (counts[i] > 0) {
+                    length = i + 1;
+                }
+            }
+            return Arrays.copyOf(counts, length);
+        }
+
+        // upper bound of the bucket holding given fraction of values, 0 if there are no values
+        double percentile(double fraction) {
+            long[] counts = snapshot();
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= fraction * total)
+                    return (0 == i) ? 0 : Math.scalb(1.0, i) - 1;
+            }
+            return 0;
+        }
+
+        private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE + 1);
+    }
+
+    private volatile TrafficShaper shaper;
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder aborted = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder connectionErrors = new LongAdder();
+    private final LongAdder downloadedRanges = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+    private final Log2Histogram durations = new Log2Histogram();
+    private final Log2Histogram throughputs = new Log2Histogram();
+}
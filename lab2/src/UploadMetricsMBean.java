@@ -0,0 +1,46 @@
+// Management interface of UploadMetrics, shown as lab2:type=UploadMetrics by JMX clients such as jconsole.
+// Histograms have bucket i counting values from 2^(i-1) to 2^i - 1, bucket 0 counts zeros
+public interface UploadMetricsMBean {
+    int getActiveConnections();
+
+    int getActiveUploads();
+
+    long getCompletedUploads();
+
+    long getDeduplicatedUploads();
+
+    // uploads stopped before completion, interrupted ones are kept for resuming
+    long getAbortedUploads();
+
+    // uploads received completely but not stored: hash mismatch, name taken, disk errors
+    long getFailedUploads();
+
+    // connections closed because of I/O errors or protocol violations
+    long getConnectionErrors();
+
+    long getDownloadedRanges();
+
+    // data of downloaded ranges, without messages
+    long getSentBytes();
+
+    long getReceivedBytes();
+
+    // sum of smoothed rates of all connections, bytes per second
+    double getReceiveRate();
+
+    // smoothed rate of each connection transferring a file
+    String[] getConnectionRates();
+
+    long[] getDurationHistogram();
+
+    double getMedianDurationMillis();
+
+    double getP99DurationMillis();
+
+    // bytes per second received by completed uploads, resumed ones count only data of the last session
+    long[] getThroughputHistogram();
+
+    double getMedianThroughput();
+
+    double getP99Throughput();
+}
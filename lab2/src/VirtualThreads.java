@@ -0,0 +1,44 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Executor starting new virtual thread for each task. Sources of lab2 are kept compilable by JDK 11,
+// the project JDK of lab2, and the factory appeared in JDK 21, so it's looked up by reflection.
+// On JVMs before 21 (or 19-20 without preview features) new platform thread is started for each task
+final class VirtualThreads {
+    private static final Method NEW_EXECUTOR = findExecutorFactory();
+
+    private VirtualThreads() {}
+
+    static boolean isSupported() {
+        ExecutorService executor = newVirtualExecutor();
+        if (null == executor)
+            return false;
+        executor.shutdown();
+        return true;
+    }
+
+    static ExecutorService newThreadPerTaskExecutor() {
+        ExecutorService executor = newVirtualExecutor();
+        return (null != executor) ? executor : Executors.newCachedThreadPool();
+    }
+
+    private static ExecutorService newVirtualExecutor() {
+        if (null == NEW_EXECUTOR)
+            return null;
+
+        try {
+            return (ExecutorService) NEW_EXECUTOR.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static Method findExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package ru.nsu.semenov.nsulabs.lab3;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Supplier;
+
+// Receive buffers reused between datagrams, each of them is made once by factory together with whatever
+// is reused with it. Received datagram stays in its buffer until the data thread has handled it, so several
+// buffers may be in use at once. At most maxPooled free buffers are kept, the rest are left to the garbage
+// collector
+class BufferPool<T> {
+    BufferPool(@NotNull Supplier<T> factory, int maxPooled) {
+        this.factory = factory;
+        freeBuffers = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    // returns free buffer as it was released, makes new one if there are no free buffers
+    @NotNull T acquire() {
+        T buffer = freeBuffers.poll();
+        return (null == buffer) ? factory.get() : buffer;
+    }
+
+    // buffer must not be used after it's released
+    void release(@NotNull T buffer) {
+        freeBuffers.offer(buffer);
+    }
+
+    private final Supplier<T> factory;
+    private final ArrayBlockingQueue<T> freeBuffers;
+}
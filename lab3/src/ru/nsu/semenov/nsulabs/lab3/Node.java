@@ -20,14 +20,19 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
+// Node of the chat tree. Selector thread of run() receives and sends datagrams, dataExecutor parses
+// and handles them and owns state of nodes and messages. See OutgoingBatches, TextAckMessage and
+// RttEstimator for how messages are batched, acknowledged and resent.
 public class Node {
-    private static final long SELECTOR_TIMEOUT = 1000; // in milliseconds
     private static final int MAX_MSG_SIZE = 32 * 1024; // in bytes
+    private static final int MAX_POOLED_BUFFERS = 64;
 
     private static final Duration CHECK_INTERVAL = Duration.ofMillis(500);
 
-    private static final Duration RESENDING_INTERVAL = Duration.ofMillis(1000);
+    private static final Duration RESENDING_INTERVAL = Duration.ofMillis(1000); // of connection, initial for texts
     private static final int MAX_SENDING_COUNT = 10;
 
     private static final Duration KEEP_ALIVE_INTERVAL = Duration.ofMillis(500);
@@ -38,11 +43,20 @@ public class Node {
     private final InetSocketAddress localAddress;
     private final InetSocketAddress parentAddress;
 
-    private boolean isRunning = false;
+    private volatile boolean isRunning = false;
+    // selector thread submits checkPendings at this time, which sets the next one
+    private volatile Instant nextCheck = Instant.MIN;
     private final HashMap<UUID, TextMessage> messageLogs = new HashMap<>();
     private final ExecutorService dataExecutor = Executors.newSingleThreadExecutor();
     private final ConcurrentLinkedQueue<Message> sendingMessagesQueue = new ConcurrentLinkedQueue<>();
+    private volatile Selector selector; // of running node
+    // selector has been woken up since the last select returned, so queueing needn't wake it again
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
     private final HashMap<SocketAddress, NodeInfo> nodes = new HashMap<>();
+    // datagrams are received into these and parsed by dataExecutor, which returns them after handling
+    private final BufferPool<ReceiveBuffer> receiveBuffers = new BufferPool<>(ReceiveBuffer::new, MAX_POOLED_BUFFERS);
+    private final OutgoingBatches outgoingBatches = new OutgoingBatches(MAX_MSG_SIZE); // of selector thread
+    private final Consumer<Message> messageHandler = this::handleMessage;
 
     private Node(@NotNull String name,
                  int lossRate,
@@ -62,26 +76,49 @@ public class Node {
     }
 
     public void run() {
-        Instant lastCheck = Instant.MIN;
-
         try (DatagramChannel datagramChannel = DatagramChannel.open();
              Selector selector = Selector.open()) {
             datagramChannel.bind(localAddress);
             datagramChannel.configureBlocking(false);
 
-            datagramChannel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            SelectionKey channelKey = datagramChannel.register(selector, SelectionKey.OP_READ);
+            this.selector = selector;
 
             if (null != parentAddress) {
-                connect(parentAddress);
+                dataExecutor.submit(() -> connect(parentAddress));
             }
 
             isRunning = true;
             try {
                 while (isRunning) {
-                    // TODO think about timeout
-                    selector.select(SELECTOR_TIMEOUT);
+                    // messages queued after they are taken wake selector up, so they aren't left till the timeout
+                    long nanoTime = System.nanoTime();
+                    for (Message message = sendingMessagesQueue.poll(); null != message;
+                         message = sendingMessagesQueue.poll()) {
+                        outgoingBatches.add(message, nanoTime);
+                    }
+                    long untilFlush = outgoingBatches.getFlushDelay(nanoTime);
+                    channelKey.interestOps((0 == untilFlush)
+                            ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                            : SelectionKey.OP_READ);
+
+                    Instant checkTime = nextCheck;
+                    Instant instant = Clock.systemUTC().instant();
+                    long untilCheck = checkTime.isAfter(instant)
+                            ? Duration.between(instant, checkTime).toMillis() + 1 // rounded up
+                            : 0;
+                    long timeout = (0 == untilFlush) ? untilCheck : Math.min(untilCheck, untilFlush);
+                    if (timeout > 0) {
+                        selector.select(timeout);
+                    } else {
+                        selector.selectNow();
+                    }
+                    wakeupPending.set(false);
 
-                    for (SelectionKey key : selector.keys()) {
+                    Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                    while (selectedKeys.hasNext()) {
+                        SelectionKey key = selectedKeys.next();
+                        selectedKeys.remove();
                         try {
                             if (key.isValid() && key.isReadable()) {
                                 handleRead(key);
@@ -96,10 +133,11 @@ public class Node {
                     }
 
                     // perform checking pendings
+                    // checkPendings sets nextCheck after this assignment, as it's run after the submit
                     Instant now = Clock.systemUTC().instant();
-                    if (Duration.between(lastCheck, now).compareTo(CHECK_INTERVAL) > 0) {
+                    if (!now.isBefore(nextCheck)) {
+                        nextCheck = now.plus(CHECK_INTERVAL);
                         dataExecutor.submit(this::checkPendings);
-                        lastCheck = now;
                     }
                 }
                 // catch if error in selector occurs
@@ -118,19 +156,35 @@ public class Node {
 
     public void stop() {
         isRunning = false;
+        wakeup();
     }
 
     public void sendMessage(@NotNull String messageText) {
-        // send message to all another connectedNodes
-        UUID uuid = UUID.randomUUID();
-        messageLogs.put(uuid, TextMessage.newInstance(localAddress, uuid, name, messageText));
+        dataExecutor.submit(() -> {
+            // send message to all another connectedNodes
+            UUID uuid = UUID.randomUUID();
+            TextMessage message = TextMessage.newInstance(localAddress, uuid, name, messageText);
+            messageLogs.put(uuid, message);
+
+            Instant now = Instant.now();
+            for (NodeInfo nodeInfo : nodes.values()) {
+                sendText(nodeInfo, message, now);
+            }
+        });
+    }
 
-        for (Map.Entry<SocketAddress, NodeInfo> entry : nodes.entrySet()) {
-            Message sendingMessage = TextMessage.newInstance(entry.getKey(), uuid, name, messageText);
+    // numbers message for the node and sends it until it's acknowledged
+    private void sendText(@NotNull NodeInfo nodeInfo, @NotNull TextMessage message, @NotNull Instant now) {
+        long sequence = nodeInfo.nextSendSequence++;
+        TextMessage sendingMessage = message.withAddress(nodeInfo.address, sequence);
+        nodeInfo.pendingTexts.put(sequence, new PendingText(sendingMessage, 1, now));
 
-            sendingMessagesQueue.add(sendingMessage);
-            entry.getValue().textPendingInfoMap.put(uuid, new PendingInfo(1, Instant.now()));
+        // queueing wakes selector up, so it sees the new check time
+        Instant resendTime = now.plus(nodeInfo.rttEstimator.getTimeout(1));
+        if (resendTime.isBefore(nextCheck)) {
+            nextCheck = resendTime;
         }
+        enqueue(sendingMessage);
     }
 
     private void connect(@NotNull SocketAddress address) {
@@ -143,10 +197,25 @@ public class Node {
         final NodeInfo node = new NodeInfo(address, NodeInfo.NodeState.OUTGOING_CONN);
         nodes.put(address, node);
 
-        sendingMessagesQueue.add(sendingMessage);
+        enqueue(sendingMessage);
         node.connectionPendingInfo = new PendingInfo(1, Instant.now());
     }
 
+    // queues message for the selector thread, may be called from any thread
+    private void enqueue(@NotNull Message message) {
+        sendingMessagesQueue.add(message);
+        if (wakeupPending.compareAndSet(false, true)) {
+            wakeup();
+        }
+    }
+
+    private void wakeup() {
+        Selector currentSelector = selector;
+        if (null != currentSelector) {
+            currentSelector.wakeup();
+        }
+    }
+
     private void cleanup() {
         dataExecutor.shutdown();
     }
@@ -155,36 +224,38 @@ public class Node {
         System.out.println(message.getName() + ": " + message.getText());
     }
 
+    // receives all available datagrams, each of them is parsed and handled by dataExecutor in its own buffer
     private void handleRead(SelectionKey key) throws IOException {
-        ByteBuffer inputBuffer = ByteBuffer.allocate(MAX_MSG_SIZE);
-
-        DatagramChannel channel = (DatagramChannel) key.channel();
-        SocketAddress senderAddress = channel.receive(inputBuffer);
-
-        Optional<Message> message = Parser.parse(inputBuffer, new ParserContext(senderAddress));
-        message.ifPresent(this::handleMessage);
-    }
-
-    private void handleWrite(SelectionKey key) throws IOException {
         DatagramChannel channel = (DatagramChannel) key.channel();
 
-        Message message = sendingMessagesQueue.peek();
-        if (null == message) {
-            return;
-        }
+        while (true) {
+            ReceiveBuffer receiveBuffer = receiveBuffers.acquire();
+            ByteBuffer inputBuffer = receiveBuffer.buffer;
+            inputBuffer.clear();
+            SocketAddress senderAddress;
+            try {
+                senderAddress = channel.receive(inputBuffer);
+            } catch (IOException e) {
+                receiveBuffers.release(receiveBuffer);
+                throw e;
+            }
+            if (null == senderAddress) { // no more datagrams
+                receiveBuffers.release(receiveBuffer);
+                return;
+            }
 
-        ByteBuffer dataBuffer = Parser.extractData(message);
-        int res = channel.send(dataBuffer, message.getAddress());
-        if (0 == res) { // insufficient room for the datagram in the underlying output buffer
-            return;
+            inputBuffer.flip();
+            receiveBuffer.context.setAddress(senderAddress);
+            dataExecutor.execute(receiveBuffer);
         }
+    }
 
-        sendingMessagesQueue.poll(); // remove sent message
-        if (message.getMessageType() != MessageType.KEEP_ALIVE) {
-            System.out.println("Sent message " + message.getMessageType() + " to " + message.getAddress());
-        }
+    // sends batches which are due until socket buffer is full
+    private void handleWrite(SelectionKey key) throws IOException {
+        outgoingBatches.flush((DatagramChannel) key.channel(), System.nanoTime());
     }
 
+    // called by dataExecutor, message is valid only until it returns
     private void handleMessage(Message message) {
 
         if (message.getMessageType() != MessageType.KEEP_ALIVE) {
@@ -200,19 +271,19 @@ public class Node {
 
         switch (message.getMessageType()) {
             case CONN_REQ:
-                dataExecutor.submit(() -> handleConnReqMessage((ConnReqMessage) message));
+                handleConnReqMessage((ConnReqMessage) message);
                 break;
             case CONN_ACK:
-                dataExecutor.submit(() -> handleConnAckMessage((ConnAckMessage) message));
+                handleConnAckMessage((ConnAckMessage) message);
                 break;
             case TEXT:
-                dataExecutor.submit(() -> handleTextMessage((TextMessage) message));
+                handleTextMessage((TextMessage) message);
                 break;
             case TEXT_ACK:
-                dataExecutor.submit(() -> handleTextAckMessage((TextAckMessage) message));
+                handleTextAckMessage((TextAckMessage) message);
                 break;
             case KEEP_ALIVE:
-                dataExecutor.submit(() -> handleKeepAliveMessage((KeepAliveMessage) message));
+                handleKeepAliveMessage((KeepAliveMessage) message);
                 break;
             default:
                 throw new AssertionError("Invalid message type");
@@ -224,7 +295,7 @@ public class Node {
                 new NodeInfo(address, NodeInfo.NodeState.INCOMING_CONN));
 
         if (nodeInfo.state == NodeInfo.NodeState.INCOMING_CONN) {
-            sendingMessagesQueue.add(ConnAckMessage.newInstance(message.getAddress()));
+            enqueue(ConnAckMessage.newInstance(message.getAddress()));
 
             nodeInfo.connectionPendingInfo.updateLastTime(Instant.now());
             nodeInfo.connectionPendingInfo.incrementResendingCount();
@@ -236,15 +307,17 @@ public class Node {
         if (nodeInfo != null) {
             switch (nodeInfo.state) {
                 case INCOMING_CONN:
+                    addConnectionRttSample(nodeInfo);
                     nodeInfo.lastReceivedKeepAlive = Instant.now();
                     nodeInfo.state = NodeInfo.NodeState.CONNECTED;
                     System.out.println("Established connection with " + message.getAddress());
                     break;
                 case OUTGOING_CONN:
+                    addConnectionRttSample(nodeInfo);
                     nodeInfo.lastReceivedKeepAlive = Instant.now();
                     nodeInfo.state = NodeInfo.NodeState.CONNECTED;
                     System.out.println("Established connection with " + message.getAddress());
-                    sendingMessagesQueue.add(ConnAckMessage.newInstance(message.getAddress()));
+                    enqueue(ConnAckMessage.newInstance(message.getAddress()));
                     break;
                 case CONNECTED:
                     break;
@@ -254,27 +327,34 @@ public class Node {
         }
     }
 
+    // ack of connection which has been sent once measures round trip like ack of text
+    private void addConnectionRttSample(@NotNull NodeInfo nodeInfo) {
+        PendingInfo pendingInfo = nodeInfo.connectionPendingInfo;
+        if (1 == pendingInfo.getSendCount()) {
+            nodeInfo.rttEstimator.addSample(Duration.between(pendingInfo.getLastSendTime(), Instant.now()));
+        }
+    }
+
     private void handleTextMessage(@NotNull TextMessage message) {
         NodeInfo nodeInfo = nodes.get(message.getAddress());
         if (nodeInfo != null) {
-            if (messageLogs.containsKey(message.getUuid())) {
-                sendingMessagesQueue.add(TextAckMessage.newInstance(message.getAddress(), message.getUuid()));
-            } else {
-                showMessage(message);
-                messageLogs.put(message.getUuid(), message);
+            boolean isNew = nodeInfo.markReceived(message.getSequence());
+
+            // send acknowledge to sender, duplicates are acknowledged again as the ack may have been lost.
+            // Acks waiting to be sent are replaced by this one, see OutgoingBatches
+            enqueue(TextAckMessage.newInstance(message.getAddress(), nodeInfo.nextReceiveSequence,
+                    nodeInfo.receivedAhead));
 
-                // send acknowledge to sender
-                sendingMessagesQueue.add(TextAckMessage.newInstance(message.getAddress(), message.getUuid()));
+            if (isNew && !messageLogs.containsKey(message.getUuid())) {
+                TextMessage loggedMessage = message.retain();
+                showMessage(loggedMessage);
+                messageLogs.put(loggedMessage.getUuid(), loggedMessage);
 
                 // send message to all another connectedNodes
+                Instant now = Instant.now();
                 for (Map.Entry<SocketAddress, NodeInfo> entry : nodes.entrySet()) {
                     if (!entry.getKey().equals(message.getAddress())) {
-
-                        TextMessage textMessage = TextMessage.newInstance(entry.getKey(), message.getUuid(),
-                                message.getName(), message.getText());
-
-                        entry.getValue().textPendingInfoMap.put(textMessage.getUuid(), new PendingInfo(1, Instant.now()));
-                        sendingMessagesQueue.add(textMessage);
+                        sendText(entry.getValue(), loggedMessage, now);
                     }
                 }
             }
@@ -284,7 +364,26 @@ public class Node {
     private void handleTextAckMessage(@NotNull TextAckMessage message) {
         NodeInfo nodeInfo = nodes.get(message.getAddress());
         if (nodeInfo != null) {
-            nodeInfo.textPendingInfoMap.remove(message.getUuid());
+            // round trip is measured by the latest acknowledged message which has been sent once
+            Instant sampleSendTime = null;
+            Iterator<Map.Entry<Long, PendingText>> pendingTexts = nodeInfo.pendingTexts
+                    .headMap(message.getNextSequence() + 1 + TextAckMessage.MAX_SELECTIVE_BITS)
+                    .entrySet().iterator();
+            while (pendingTexts.hasNext()) {
+                Map.Entry<Long, PendingText> entry = pendingTexts.next();
+                if (message.isReceived(entry.getKey())) {
+                    PendingText pendingText = entry.getValue();
+                    if (1 == pendingText.getSendCount()
+                            && (null == sampleSendTime || pendingText.getLastSendTime().isAfter(sampleSendTime))) {
+                        sampleSendTime = pendingText.getLastSendTime();
+                    }
+                    pendingTexts.remove();
+                }
+            }
+
+            if (null != sampleSendTime) {
+                nodeInfo.rttEstimator.addSample(Duration.between(sampleSendTime, Instant.now()));
+            }
         }
     }
 
@@ -297,35 +396,39 @@ public class Node {
 
     private void checkPendings() {
         Instant now = Instant.now();
+        Instant checkTime = now.plus(CHECK_INTERVAL);
         LinkedList<SocketAddress> toRemove = new LinkedList<>();
 
         for (Map.Entry<SocketAddress, NodeInfo> entry : nodes.entrySet()) {
             NodeInfo nodeInfo = entry.getValue();
             switch (nodeInfo.state) {
                 case CONNECTED:
-                    for (Map.Entry<UUID, PendingInfo> textEntry : nodeInfo.textPendingInfoMap.entrySet()) {
-                        if (Duration.between(textEntry.getValue().lastSendTime, now).compareTo(RESENDING_INTERVAL) > 0) {
-                            if (textEntry.getValue().sendCount < MAX_SENDING_COUNT) {
-                                textEntry.getValue().updateLastTime(now);
-                                textEntry.getValue().incrementResendingCount();
-
-                                TextMessage message = messageLogs.get(textEntry.getKey());
-//                                System.out.println(message.getText());
+                    for (PendingText pendingText : nodeInfo.pendingTexts.values()) {
+                        Duration timeout = nodeInfo.rttEstimator.getTimeout(pendingText.getSendCount());
+                        if (Duration.between(pendingText.getLastSendTime(), now).compareTo(timeout) >= 0) {
+                            if (pendingText.getSendCount() < MAX_SENDING_COUNT) {
+                                pendingText.updateLastTime(now);
+                                pendingText.incrementResendingCount();
+                                timeout = nodeInfo.rttEstimator.getTimeout(pendingText.getSendCount());
 
-                                sendingMessagesQueue.add(TextMessage.newInstance(entry.getKey(),
-                                        message.getUuid(), message.getName(), message.getText()));
+                                enqueue(pendingText.message);
 
                             } else {
                                 toRemove.add(entry.getKey());
                                 System.out.println("Severed connection with " + entry.getKey());
                             }
                         }
+
+                        Instant resendTime = pendingText.getLastSendTime().plus(timeout);
+                        if (resendTime.isBefore(checkTime)) {
+                            checkTime = resendTime;
+                        }
                     }
                     break;
                 case INCOMING_CONN:
                     if (Duration.between(nodeInfo.connectionPendingInfo.lastSendTime, now).compareTo(RESENDING_INTERVAL) > 0) {
                         if (nodeInfo.connectionPendingInfo.sendCount < MAX_SENDING_COUNT) {
-                            sendingMessagesQueue.add(ConnAckMessage.newInstance(entry.getKey()));
+                            enqueue(ConnAckMessage.newInstance(entry.getKey()));
                             nodeInfo.connectionPendingInfo.incrementResendingCount();
                             nodeInfo.connectionPendingInfo.updateLastTime(now);
                         } else {
@@ -337,7 +440,7 @@ public class Node {
                 case OUTGOING_CONN:
                     if (Duration.between(nodeInfo.connectionPendingInfo.lastSendTime, now).compareTo(RESENDING_INTERVAL) > 0) {
                         if (nodeInfo.connectionPendingInfo.sendCount < MAX_SENDING_COUNT) {
-                            sendingMessagesQueue.add(ConnReqMessage.newInstance(entry.getKey()));
+                            enqueue(ConnReqMessage.newInstance(entry.getKey()));
                             nodeInfo.connectionPendingInfo.incrementResendingCount();
                             nodeInfo.connectionPendingInfo.updateLastTime(now);
                         } else {
@@ -361,7 +464,7 @@ public class Node {
                         System.out.println("Severed connection with " + entry.getKey() + ". No keep alive received");
                     }
                     if (Duration.between(nodeInfo.lastSentKeepAlive, now).compareTo(KEEP_ALIVE_INTERVAL) > 0) {
-                        sendingMessagesQueue.add(KeepAliveMessage.newInstance(entry.getKey()));
+                        enqueue(KeepAliveMessage.newInstance(entry.getKey()));
                         nodeInfo.lastSentKeepAlive = now;
                     }
                     break;
@@ -373,6 +476,12 @@ public class Node {
         for (SocketAddress address : toRemove) {
             nodes.remove(address);
         }
+
+        // selector may sleep till the time it has set before the submit, so it's woken up for an earlier one
+        nextCheck = checkTime;
+        if (checkTime.isBefore(now.plus(CHECK_INTERVAL)) && wakeupPending.compareAndSet(false, true)) {
+            wakeup();
+        }
     }
 
     private static class NodeInfo {
@@ -387,7 +496,29 @@ public class Node {
             state = nodeState;
         }
 
-        final HashMap<UUID, PendingInfo> textPendingInfoMap = new HashMap<>();
+        // marks message as received, returns false if it has been received already
+        // or is too far ahead to be acknowledged selectively, then it's dropped till it's resent
+        boolean markReceived(long sequence) {
+            if (sequence == nextReceiveSequence) {
+                int receivedAfter = receivedAhead.nextClearBit(0);
+                nextReceiveSequence += 1 + receivedAfter;
+                int shift = receivedAfter + 1;
+                receivedAhead = receivedAhead.get(shift, Math.max(shift, receivedAhead.length()));
+                return true;
+            }
+            long bit = sequence - nextReceiveSequence - 1;
+            if (bit < 0 || bit >= TextAckMessage.MAX_SELECTIVE_BITS || receivedAhead.get((int) bit)) {
+                return false;
+            }
+            receivedAhead.set((int) bit);
+            return true;
+        }
+
+        long nextSendSequence = 0;
+        final TreeMap<Long, PendingText> pendingTexts = new TreeMap<>(); // not acknowledged, by sequence
+        final RttEstimator rttEstimator = new RttEstimator(RESENDING_INTERVAL);
+        long nextReceiveSequence = 0; // all messages before it are received
+        BitSet receivedAhead = new BitSet(); // bit i is set if message nextReceiveSequence + 1 + i is received
         PendingInfo connectionPendingInfo = new PendingInfo();
         Instant lastReceivedKeepAlive = Instant.MIN;
         Instant lastSentKeepAlive = Instant.MIN;
@@ -426,5 +557,30 @@ public class Node {
         private int sendCount;
         private Instant lastSendTime;
     }
+
+    private static class PendingText extends PendingInfo {
+        PendingText(@NotNull TextMessage message, int sendCount, @NotNull Instant lastSendTime) {
+            super(sendCount, lastSendTime);
+            this.message = message;
+        }
+
+        final TextMessage message; // addressed and numbered
+    }
+
+    // pooled buffer of received datagram with the context it's parsed in. It's the task of dataExecutor
+    // handling the datagram as well, so receiving allocates nothing but the node of executor's queue
+    private final class ReceiveBuffer implements Runnable {
+        @Override
+        public void run() {
+            try {
+                Parser.parseAll(buffer, context, messageHandler);
+            } finally {
+                receiveBuffers.release(this);
+            }
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_MSG_SIZE);
+        final ParserContext context = new ParserContext();
+    }
 }
 
@@ -0,0 +1,126 @@
+package ru.nsu.semenov.nsulabs.lab3;
+
+import org.jetbrains.annotations.NotNull;
+import ru.nsu.semenov.nsulabs.lab3.messages.Message;
+import ru.nsu.semenov.nsulabs.lab3.messages.MessageType;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Messages waiting to be sent, grouped by neighbor. Messages of a neighbor are held for FLUSH_WINDOW after
+// the first of them is added, or until they fill a datagram, and then go out together in BATCH datagrams
+// of MAX_BATCH_SIZE bytes at most, so that a batch isn't fragmented by IP. A single message is sent as is.
+// Ack waiting in a batch is replaced by a newer one, which acknowledges everything the older one does.
+// Used by the selector thread only, times are in System.nanoTime() units
+class OutgoingBatches {
+    private static final long FLUSH_WINDOW = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final int MAX_BATCH_SIZE = 1400; // in bytes
+    private static final long NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    OutgoingBatches(int maxMessageSize) {
+        sendBuffer = ByteBuffer.allocateDirect(maxMessageSize);
+    }
+
+    void add(@NotNull Message message, long now) {
+        PendingBatch batch = batches.get(message.getAddress());
+        if (null == batch) {
+            batch = new PendingBatch(now + FLUSH_WINDOW);
+            batches.put(message.getAddress(), batch);
+        }
+        if (MessageType.TEXT_ACK == message.getMessageType()) {
+            if (null != batch.ack) {
+                batch.remove(batch.ack);
+            }
+            batch.ack = message;
+        }
+        batch.messages.add(message);
+        batch.size += Integer.BYTES + Parser.getEncodedLength(message);
+    }
+
+    // returns milliseconds until the next batch is due, 0 if one is due now, Long.MAX_VALUE if there are none
+    long getFlushDelay(long now) {
+        long delay = Long.MAX_VALUE;
+        for (PendingBatch batch : batches.values()) {
+            if (batch.isDue(now)) {
+                return 0;
+            }
+            delay = Math.min(delay, (batch.deadline - now + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI); // rounded up
+        }
+        return delay;
+    }
+
+    // sends due batches, returns false if socket buffer has become full before all of them are sent
+    boolean flush(@NotNull DatagramChannel channel, long now) throws IOException {
+        Iterator<PendingBatch> iterator = batches.values().iterator();
+        while (iterator.hasNext()) {
+            PendingBatch batch = iterator.next();
+            while (batch.isDue(now)) {
+                sendBuffer.clear();
+                int count;
+                try {
+                    count = Parser.encodeBatch(batch.messages, sendBuffer, MAX_BATCH_SIZE);
+                } catch (BufferOverflowException e) { // single message which is too long
+                    Message message = batch.remove();
+                    System.err.println("Message " + message.getMessageType() + " to " + message.getAddress()
+                            + " is too long");
+                    continue;
+                }
+                sendBuffer.flip();
+                if (0 == channel.send(sendBuffer, batch.messages.peek().getAddress())) {
+                    return false; // insufficient room for the datagram in the underlying output buffer
+                }
+
+                for (int i = 0; i < count; i++) {
+                    Message message = batch.remove();
+                    if (message.getMessageType() != MessageType.KEEP_ALIVE) {
+                        System.out.println("Sent message " + message.getMessageType() + " to " + message.getAddress());
+                    }
+                }
+            }
+            if (batch.messages.isEmpty()) {
+                iterator.remove();
+            }
+        }
+        return true;
+    }
+
+    private static class PendingBatch {
+        PendingBatch(long deadline) {
+            this.deadline = deadline;
+        }
+
+        // messages are sent when the window is over or when they fill a datagram
+        boolean isDue(long now) {
+            return !messages.isEmpty() && (now - deadline >= 0 || Integer.BYTES + size >= MAX_BATCH_SIZE);
+        }
+
+        @NotNull Message remove() {
+            Message message = messages.peek();
+            remove(message);
+            return message;
+        }
+
+        void remove(@NotNull Message message) {
+            messages.removeFirstOccurrence(message);
+            size -= Integer.BYTES + Parser.getEncodedLength(message);
+            if (message == ack) {
+                ack = null;
+            }
+        }
+
+        final ArrayDeque<Message> messages = new ArrayDeque<>();
+        final long deadline;
+        int size = 0; // of messages in batch, with their lengths
+        Message ack = null; // the only TEXT_ACK among messages
+    }
+
+    private final LinkedHashMap<SocketAddress, PendingBatch> batches = new LinkedHashMap<>();
+    private final ByteBuffer sendBuffer;
+}
@@ -1,144 +1,225 @@
 package ru.nsu.semenov.nsulabs.lab3;
 
-import com.sun.istack.internal.NotNull;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import ru.nsu.semenov.nsulabs.lab3.messages.*;
 
 import java.net.SocketAddress;
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.util.Optional;
+import java.util.Collection;
 import java.util.UUID;
-
+import java.util.function.Consumer;
+
+// Reads and writes fields of datagrams in place, all values are big-endian:
+//   type (int), then for TEXT uuid (two longs), sequence number (long) and payload of TextMessage,
+//   for TEXT_ACK next sequence number (long), length of selective ack (int) and its bytes.
+// Several messages to the same node may be sent in one datagram of BATCH type:
+//   type (int), then for each message its length (int) and the message as it's sent alone.
+// Parsed messages are views kept by ParserContext and reused for its next datagram, text message and
+// ack view the datagram buffer, so parsing allocates nothing
 class Parser {
-    private static final Charset encodingCharset = StandardCharsets.UTF_8;
+    private static final int TYPE_LEN = Integer.BYTES;
+    private static final int UUID_LEN = Long.BYTES * 2;
+    private static final int SEQUENCE_LEN = Long.BYTES;
 
     private Parser() {}
 
-    static @NotNull Optional<Message> parse(@NotNull ByteBuffer buffer, @NotNull ParserContext context) {
-        buffer.rewind();
-        try {
-            int msgTypeValue = buffer.getInt();
-            Optional<MessageType> optionalPacketType = MessageType.fromInt(msgTypeValue);
-            if (!optionalPacketType.isPresent()) {
-                return Optional.empty();
+    // passes each message of datagram from position to limit of buffer to the handler, invalid messages
+    // are skipped. Message is valid only until handler returns. Limit is restored after each message
+    static void parseAll(@NotNull ByteBuffer buffer,
+                         @NotNull ParserContext context,
+                         @NotNull Consumer<Message> handler) {
+        int end = buffer.limit();
+        if (buffer.remaining() < TYPE_LEN
+                || MessageType.BATCH != MessageType.fromInt(buffer.getInt(buffer.position()))) {
+            Message message = parse(buffer, context);
+            if (null != message) {
+                handler.accept(message);
             }
+            return;
+        }
 
-            MessageType messageType = optionalPacketType.get();
-            switch (messageType) {
-                case TEXT: {
-                    long mostSignificantBits = buffer.getLong();
-                    long leastSignificantBits = buffer.getLong();
-                    UUID messageUuid = new UUID(mostSignificantBits, leastSignificantBits);
-
-                    int nameLength = buffer.getInt();
-                    if (buffer.remaining() < nameLength) {
-                        return Optional.empty();
-                    }
-
-                    byte[] nameBuffer = new byte[nameLength];
-                    buffer.get(nameBuffer);
-                    String name = new String(nameBuffer, encodingCharset);
+        int next = buffer.position() + TYPE_LEN;
+        while (end - next >= Integer.BYTES) {
+            int length = buffer.getInt(next);
+            next += Integer.BYTES;
+            if (length < 0 || length > end - next) {
+                return; // the rest of batch is malformed
+            }
 
-                    int textLength = buffer.getInt();
-                    if (buffer.remaining() < textLength) {
-                        return Optional.empty();
-                    }
+            buffer.limit(next + length);
+            buffer.position(next);
+            Message message = parse(buffer, context);
+            if (null != message) {
+                handler.accept(message);
+            }
+            buffer.limit(end);
+            next += length;
+        }
+    }
 
-                    byte[] textBuffer = new byte[textLength];
-                    buffer.get(textBuffer);
-                    String text = new String(textBuffer, encodingCharset);
+    // parses datagram of single message from position to limit of buffer, returns null if it's invalid.
+    // Position and limit are changed to bound payload of text message or selective bits of ack
+    static @Nullable Message parse(@NotNull ByteBuffer buffer, @NotNull ParserContext context) {
+        int start = buffer.position();
+        int length = buffer.remaining();
+        if (length < TYPE_LEN) {
+            return null;
+        }
 
-                    return Optional.of(TextMessage.newInstance(context.getAddress(), messageUuid, name, text));
-                }
-                case TEXT_ACK: {
-                    long mostSignificantBits = buffer.getLong();
-                    long leastSignificantBits = buffer.getLong();
-                    UUID messageUuid = new UUID(mostSignificantBits, leastSignificantBits);
+        MessageType messageType = MessageType.fromInt(buffer.getInt(start));
+        if (null == messageType) {
+            return null;
+        }
 
-                    return Optional.of(TextAckMessage.newInstance(context.getAddress(), messageUuid));
-                }
-                case CONN_REQ: {
-                    return Optional.of(ConnReqMessage.newInstance(context.getAddress()));
-                }
-                case CONN_ACK: {
-                    return Optional.of(ConnAckMessage.newInstance(context.getAddress()));
+        switch (messageType) {
+            case TEXT: {
+                int payloadStart = start + TYPE_LEN + UUID_LEN + SEQUENCE_LEN;
+                int nameLength = getLength(buffer, payloadStart);
+                if (nameLength < 0) {
+                    return null;
                 }
-                case KEEP_ALIVE: {
-                    return Optional.of(KeepAliveMessage.newInstance(context.getAddress()));
+                int textLength = getLength(buffer, payloadStart + Integer.BYTES + nameLength);
+                if (textLength < 0) {
+                    return null;
                 }
-                default:
-                    return Optional.empty();
+
+                long uuidMost = buffer.getLong(start + TYPE_LEN);
+                long uuidLeast = buffer.getLong(start + TYPE_LEN + Long.BYTES);
+                long sequence = buffer.getLong(start + TYPE_LEN + UUID_LEN);
+                buffer.limit(payloadStart + Integer.BYTES * 2 + nameLength + textLength);
+                buffer.position(payloadStart);
+                return context.textMessage.wrap(context.getAddress(), uuidMost, uuidLeast, sequence, buffer);
             }
+            case TEXT_ACK: {
+                int selectiveStart = start + TYPE_LEN + SEQUENCE_LEN;
+                int selectiveLength = getLength(buffer, selectiveStart);
+                if (selectiveLength < 0 || selectiveLength > TextAckMessage.MAX_SELECTIVE_BYTES) {
+                    return null;
+                }
 
-        } catch (BufferUnderflowException e) {
-            return Optional.empty();
+                long nextSequence = buffer.getLong(start + TYPE_LEN);
+                buffer.limit(selectiveStart + Integer.BYTES + selectiveLength);
+                buffer.position(selectiveStart + Integer.BYTES);
+                return context.textAckMessage.wrap(context.getAddress(), nextSequence, buffer);
+            }
+            case CONN_REQ: {
+                return context.connReqMessage.wrap(context.getAddress());
+            }
+            case CONN_ACK: {
+                return context.connAckMessage.wrap(context.getAddress());
+            }
+            case KEEP_ALIVE: {
+                return context.keepAliveMessage.wrap(context.getAddress());
+            }
+            case BATCH: // batches aren't nested
+            default:
+                return null;
         }
     }
 
-    static @NotNull ByteBuffer extractData(@NotNull Message message) {
+    // returns length of datagram of single message
+    static int getEncodedLength(@NotNull Message message) {
         switch (message.getMessageType()) {
-            case TEXT: {
-                TextMessage textMessage = (TextMessage) message;
-
-                byte[] encodedName = textMessage.getName().getBytes(encodingCharset);
-                byte[] encodedData = textMessage.getText().getBytes(encodingCharset);
-
-                ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES * 3 + Long.BYTES * 2
-                        + encodedName.length + encodedData.length);
-
-                buffer.putInt(textMessage.getMessageType().getValue());
-
-                buffer.putLong(textMessage.getUuid().getMostSignificantBits());
-                buffer.putLong(textMessage.getUuid().getLeastSignificantBits());
+            case TEXT:
+                return TYPE_LEN + UUID_LEN + SEQUENCE_LEN + ((TextMessage) message).getPayloadLength();
+            case TEXT_ACK:
+                return TYPE_LEN + SEQUENCE_LEN + Integer.BYTES + ((TextAckMessage) message).getSelectiveLength();
+            default:
+                return TYPE_LEN;
+        }
+    }
 
-                buffer.putInt(encodedName.length);
-                buffer.put(encodedName);
+    // puts datagram of messages from the head of collection into out, as many of them as fit into
+    // maxLength bytes, returns their number. Messages are sent to the same address.
+    // The first message is taken even if it's longer, single message is put without batch.
+    // BufferOverflowException is thrown if it doesn't fit into out
+    static int encodeBatch(@NotNull Collection<Message> messages, @NotNull ByteBuffer out, int maxLength) {
+        int count = 0;
+        int length = TYPE_LEN;
+        for (Message message : messages) {
+            length += Integer.BYTES + getEncodedLength(message);
+            if (count > 0 && length > maxLength) {
+                break;
+            }
+            count++;
+        }
 
-                buffer.putInt(encodedData.length);
-                buffer.put(encodedData);
+        if (1 == count) {
+            encode(messages.iterator().next(), out);
+            return 1;
+        }
+        out.putInt(MessageType.BATCH.getValue());
+        int encoded = 0;
+        for (Message message : messages) {
+            if (encoded++ == count) {
+                break;
+            }
+            out.putInt(getEncodedLength(message));
+            encode(message, out);
+        }
+        return count;
+    }
 
-                buffer.rewind();
-                return buffer.asReadOnlyBuffer();
+    // puts datagram of message into out at its position,
+    // BufferOverflowException is thrown if it doesn't fit
+    static void encode(@NotNull Message message, @NotNull ByteBuffer out) {
+        out.putInt(message.getMessageType().getValue());
+        switch (message.getMessageType()) {
+            case TEXT: {
+                TextMessage textMessage = (TextMessage) message;
+                putUuid(out, textMessage.getUuid());
+                out.putLong(textMessage.getSequence());
+                textMessage.writePayload(out);
+                break;
             }
             case TEXT_ACK: {
-                TextAckMessage textAckMessage = (TextAckMessage) message;
-
-                ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + Long.BYTES * 4);
-
-                buffer.putInt(message.getMessageType().getValue());
-
-                buffer.putLong(textAckMessage.getUuid().getMostSignificantBits());
-                buffer.putLong(textAckMessage.getUuid().getLeastSignificantBits());
-
-                buffer.rewind();
-                return buffer.asReadOnlyBuffer();
+                TextAckMessage ackMessage = (TextAckMessage) message;
+                out.putLong(ackMessage.getNextSequence());
+                out.putInt(ackMessage.getSelectiveLength());
+                ackMessage.writeSelective(out);
+                break;
             }
             case CONN_REQ:
             case CONN_ACK:
-            case KEEP_ALIVE: {
-                ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
-
-                buffer.putInt(message.getMessageType().getValue());
-
-                buffer.rewind();
-                return buffer.asReadOnlyBuffer();
-            }
+            case KEEP_ALIVE:
+                break;
+            case BATCH: // is put by encodeBatch
             default:
                 throw new IllegalArgumentException("Can't resolve packet's type");
         }
     }
 
+    // reads length of string or bytes at index, which must fit into datagram with the string. Returns -1 otherwise
+    private static int getLength(@NotNull ByteBuffer buffer, int index) {
+        if (buffer.limit() - index < Integer.BYTES) {
+            return -1;
+        }
+        int length = buffer.getInt(index);
+        return (length >= 0 && length <= buffer.limit() - index - Integer.BYTES) ? length : -1;
+    }
+
+    private static void putUuid(@NotNull ByteBuffer out, @NotNull UUID uuid) {
+        out.putLong(uuid.getMostSignificantBits());
+        out.putLong(uuid.getLeastSignificantBits());
+    }
+
+    // sender of the datagram being parsed and views of messages parsed from it. Views are reused for each
+    // datagram, so a context serves one datagram at a time and is set to its sender before parsing
     static class ParserContext {
         @NotNull SocketAddress getAddress() {
             return address;
         }
 
-        ParserContext(@NotNull SocketAddress address) {
+        void setAddress(@NotNull SocketAddress address) {
             this.address = address;
         }
 
-        private final SocketAddress address;
+        private SocketAddress address;
+        private final TextMessage textMessage = TextMessage.newView();
+        private final TextAckMessage textAckMessage = TextAckMessage.newView();
+        private final ConnReqMessage connReqMessage = ConnReqMessage.newView();
+        private final ConnAckMessage connAckMessage = ConnAckMessage.newView();
+        private final KeepAliveMessage keepAliveMessage = KeepAliveMessage.newView();
     }
 }
@@ -0,0 +1,116 @@
+package ru.nsu.semenov.nsulabs.lab3;
+
+import org.jetbrains.annotations.NotNull;
+import ru.nsu.semenov.nsulabs.lab3.messages.*;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.UUID;
+
+// Measures throughput and allocation of Parser for text and ack datagrams: parsing, parsing with decoding
+// text as it's shown, and encoding. Each case is run WARMUP_ITERATIONS times so that JIT compiles it,
+// then ITERATIONS measured times. Median throughput is the one to compare between revisions. Allocation is
+// counted by the JVM for all threads and is left out if JVM doesn't count it.
+//   java ru.nsu.semenov.nsulabs.lab3.ParserBenchmark [operations per iteration]
+public class ParserBenchmark {
+    private static final int DEFAULT_OPERATIONS = 1_000_000;
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int ITERATIONS = 10;
+    private static final int MAX_MSG_SIZE = 32 * 1024;
+
+    private static volatile Object sink; // results are stored here, so JIT can't drop the work
+
+    private interface Operation {
+        Object run();
+    }
+
+    public static void main(String[] args) {
+        int operations = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_OPERATIONS;
+
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 8000);
+        Parser.ParserContext context = new Parser.ParserContext();
+        context.setAddress(address);
+        UUID uuid = UUID.randomUUID();
+        TextMessage text = TextMessage.newInstance(address, uuid, "node", "Hello, world! It is a typical chat message.");
+        BitSet receivedAhead = new BitSet(); // a few messages after the gap
+        receivedAhead.set(0, 5);
+        TextAckMessage ack = TextAckMessage.newInstance(address, 1000, receivedAhead);
+
+        ByteBuffer textDatagram = toDatagram(text);
+        ByteBuffer ackDatagram = toDatagram(ack);
+        int textLength = textDatagram.remaining();
+        ByteBuffer out = ByteBuffer.allocateDirect(MAX_MSG_SIZE);
+
+        System.out.println("operation          | median, ops/us | best, ops/us | allocated, bytes/op");
+        measure("parse TEXT", operations, () -> parse(textDatagram, textLength, context));
+        measure("parse TEXT, show", operations, () -> {
+            TextMessage message = (TextMessage) parse(textDatagram, textLength, context);
+            return message.getName() + ": " + message.getText();
+        });
+        measure("parse TEXT_ACK", operations, () -> parse(ackDatagram, ackDatagram.limit(), context));
+        measure("encode TEXT", operations, () -> {
+            out.clear();
+            Parser.encode(text, out);
+            return out;
+        });
+        measure("encode TEXT_ACK", operations, () -> {
+            out.clear();
+            Parser.encode(ack, out);
+            return out;
+        });
+    }
+
+    private static @NotNull ByteBuffer toDatagram(@NotNull Message message) {
+        ByteBuffer datagram = ByteBuffer.allocateDirect(MAX_MSG_SIZE);
+        Parser.encode(message, datagram);
+        datagram.flip();
+        return datagram;
+    }
+
+    // parser moves bounds of text datagram, so they are restored before each parse
+    private static Message parse(@NotNull ByteBuffer datagram, int length, @NotNull Parser.ParserContext context) {
+        datagram.limit(length);
+        datagram.position(0);
+        return Parser.parse(datagram, context);
+    }
+
+    private static void measure(@NotNull String name, int operations, @NotNull Operation operation) {
+        double[] rates = new double[ITERATIONS];
+        long allocated = 0;
+        for (int i = -WARMUP_ITERATIONS; i < ITERATIONS; i++) {
+            long allocatedBefore = getAllocatedBytes();
+            long start = System.nanoTime();
+            for (int j = 0; j < operations; j++) {
+                sink = operation.run();
+            }
+            long elapsed = System.nanoTime() - start;
+            if (i >= 0) {
+                rates[i] = operations * 1000.0 / elapsed;
+                allocated += getAllocatedBytes() - allocatedBefore;
+            }
+        }
+
+        Arrays.sort(rates);
+        String allocation = (getAllocatedBytes() < 0) ? "-"
+                : String.format("%.1f", allocated / ((double) operations * ITERATIONS));
+        System.out.printf("%-18s | %14.1f | %12.1f | %19s%n", name, rates[ITERATIONS / 2], rates[ITERATIONS - 1],
+                allocation);
+    }
+
+    // bytes allocated by live threads, -1 if JVM doesn't count them. Benchmark is the only thread allocating
+    // much, and Thread.getId() is deprecated since JDK 19 while its replacement isn't in JDK 8
+    private static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean allocationCounter = (com.sun.management.ThreadMXBean) threads;
+        long allocated = 0;
+        for (long bytes : allocationCounter.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            allocated += Math.max(bytes, 0); // -1 is returned for the threads which have terminated
+        }
+        return allocated;
+    }
+}
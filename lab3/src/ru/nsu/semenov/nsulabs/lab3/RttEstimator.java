@@ -0,0 +1,43 @@
+package ru.nsu.semenov.nsulabs.lab3;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.time.Duration;
+
+// Round-trip time of a neighbor and retransmission timeout derived from it as in RFC 6298:
+//   srtt = 7/8 srtt + 1/8 sample, rttvar = 3/4 rttvar + 1/4 |srtt - sample|, rto = srtt + 4 rttvar
+// kept within MIN_TIMEOUT and MAX_TIMEOUT. Message sent n times waits rto * 2^(n-1) before the next send.
+// Samples are taken only from messages sent once (Karn's rule), as an ack of a resent message can't
+// tell which of the sends it answers
+class RttEstimator {
+    private static final long MIN_TIMEOUT = Duration.ofMillis(20).toNanos(); // above flush windows of both nodes
+    private static final long MAX_TIMEOUT = Duration.ofSeconds(8).toNanos();
+
+    RttEstimator(@NotNull Duration initialTimeout) {
+        timeout = initialTimeout.toNanos();
+    }
+
+    void addSample(@NotNull Duration rtt) {
+        long sample = Math.max(0, rtt.toNanos());
+        if (0 == smoothedRtt) {
+            smoothedRtt = Math.max(1, sample);
+            rttVariance = sample / 2;
+        } else {
+            rttVariance += (Math.abs(smoothedRtt - sample) - rttVariance) / 4;
+            smoothedRtt += (sample - smoothedRtt) / 8;
+        }
+        timeout = Math.min(MAX_TIMEOUT, Math.max(MIN_TIMEOUT, smoothedRtt + 4 * rttVariance));
+    }
+
+    // returns time to wait for ack of message which has been sent sendCount times
+    @NotNull Duration getTimeout(int sendCount) {
+        int backoff = Math.min(Math.max(0, sendCount - 1), Long.SIZE - 2);
+        long backedOff = (timeout > MAX_TIMEOUT >> backoff) ? MAX_TIMEOUT : timeout << backoff;
+        return Duration.ofNanos(backedOff);
+    }
+
+    // in nanoseconds, smoothedRtt is 0 until the first sample
+    private long smoothedRtt = 0;
+    private long rttVariance = 0;
+    private long timeout;
+}
@@ -5,12 +5,27 @@ import org.jetbrains.annotations.NotNull;
 import java.net.SocketAddress;
 
 public class ConnAckMessage implements Message {
-    private ConnAckMessage(SocketAddress senderAddress) {
+    private ConnAckMessage(SocketAddress senderAddress, boolean view) {
         this.senderAddress = senderAddress;
+        this.view = view;
     }
 
     public static @NotNull ConnAckMessage newInstance(@NotNull SocketAddress senderAddress) {
-        return new ConnAckMessage(senderAddress);
+        return new ConnAckMessage(senderAddress, false);
+    }
+
+    // returns message which is pointed at received datagrams by wrap, it's unusable until then
+    public static @NotNull ConnAckMessage newView() {
+        return new ConnAckMessage(null, true);
+    }
+
+    // points this view at sender of another datagram and returns it
+    public @NotNull ConnAckMessage wrap(@NotNull SocketAddress senderAddress) {
+        if (!view) {
+            throw new IllegalStateException("Message isn't a view");
+        }
+        this.senderAddress = senderAddress;
+        return this;
     }
 
     @Override
@@ -24,5 +39,6 @@ public class ConnAckMessage implements Message {
 
     }
 
-    private final SocketAddress senderAddress;
+    private SocketAddress senderAddress; // changes with each datagram a view is pointed at
+    private final boolean view; // made by newView, reused by parser
 }
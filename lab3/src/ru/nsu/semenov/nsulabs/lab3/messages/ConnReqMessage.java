@@ -5,12 +5,27 @@ import org.jetbrains.annotations.NotNull;
 import java.net.SocketAddress;
 
 public class ConnReqMessage implements Message {
-    private ConnReqMessage(SocketAddress senderAddress) {
+    private ConnReqMessage(SocketAddress senderAddress, boolean view) {
         this.senderAddress = senderAddress;
+        this.view = view;
     }
 
     public static @NotNull ConnReqMessage newInstance(@NotNull SocketAddress senderAddress) {
-        return new ConnReqMessage(senderAddress);
+        return new ConnReqMessage(senderAddress, false);
+    }
+
+    // returns message which is pointed at received datagrams by wrap, it's unusable until then
+    public static @NotNull ConnReqMessage newView() {
+        return new ConnReqMessage(null, true);
+    }
+
+    // points this view at sender of another datagram and returns it
+    public @NotNull ConnReqMessage wrap(@NotNull SocketAddress senderAddress) {
+        if (!view) {
+            throw new IllegalStateException("Message isn't a view");
+        }
+        this.senderAddress = senderAddress;
+        return this;
     }
 
     @Override
@@ -24,5 +39,6 @@ public class ConnReqMessage implements Message {
         return senderAddress;
     }
 
-    private final SocketAddress senderAddress;
+    private SocketAddress senderAddress; // changes with each datagram a view is pointed at
+    private final boolean view; // made by newView, reused by parser
 }
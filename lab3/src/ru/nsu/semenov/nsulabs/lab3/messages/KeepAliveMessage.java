@@ -5,13 +5,28 @@ import org.jetbrains.annotations.NotNull;
 import java.net.SocketAddress;
 
 public class KeepAliveMessage implements Message {
-    private KeepAliveMessage(SocketAddress senderAddress) {
+    private KeepAliveMessage(SocketAddress senderAddress, boolean view) {
         this.senderAddress = senderAddress;
+        this.view = view;
     }
 
     public static @NotNull
     KeepAliveMessage newInstance(@NotNull SocketAddress senderAddress) {
-        return new KeepAliveMessage(senderAddress);
+        return new KeepAliveMessage(senderAddress, false);
+    }
+
+    // returns message which is pointed at received datagrams by wrap, it's unusable until then
+    public static @NotNull KeepAliveMessage newView() {
+        return new KeepAliveMessage(null, true);
+    }
+
+    // points this view at sender of another datagram and returns it
+    public @NotNull KeepAliveMessage wrap(@NotNull SocketAddress senderAddress) {
+        if (!view) {
+            throw new IllegalStateException("Message isn't a view");
+        }
+        this.senderAddress = senderAddress;
+        return this;
     }
 
     @Override
@@ -27,5 +42,6 @@ public class KeepAliveMessage implements Message {
 
     }
 
-    private final SocketAddress senderAddress;
+    private SocketAddress senderAddress; // changes with each datagram a view is pointed at
+    private final boolean view; // made by newView, reused by parser
 }
@@ -1,23 +1,22 @@
 package ru.nsu.semenov.nsulabs.lab3.messages;
 
-import java.util.Map;
-import java.util.Optional;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import org.jetbrains.annotations.Nullable;
 
 public enum MessageType {
     TEXT(1),
     TEXT_ACK(2),
     CONN_REQ(3),
     CONN_ACK(4),
-    KEEP_ALIVE(5);
+    KEEP_ALIVE(5),
+    BATCH(6); // container of other messages, see Parser
 
     MessageType(int value) {
         this.value = value;
     }
 
-    public static Optional<MessageType> fromInt(int i) {
-        return Optional.ofNullable(intToEnum.get(i));
+    // returns null if there is no type with such value
+    public static @Nullable MessageType fromInt(int i) {
+        return (i >= 0 && i < intToEnum.length) ? intToEnum[i] : null;
     }
 
     public int getValue() {
@@ -25,6 +24,17 @@ public enum MessageType {
     }
 
     private final int value;
-    private static final Map<Integer, MessageType> intToEnum =
-            Stream.of(MessageType.values()).collect(Collectors.toMap(MessageType::getValue, x -> x));
+    private static final MessageType[] intToEnum = indexByValue();
+
+    private static MessageType[] indexByValue() {
+        int maxValue = 0;
+        for (MessageType type : values()) {
+            maxValue = Math.max(maxValue, type.value);
+        }
+        MessageType[] index = new MessageType[maxValue + 1];
+        for (MessageType type : values()) {
+            index[type.value] = type;
+        }
+        return index;
+    }
 }
@@ -4,17 +4,50 @@ package ru.nsu.semenov.nsulabs.lab3.messages;
 import org.jetbrains.annotations.NotNull;
 
 import java.net.SocketAddress;
-import java.util.UUID;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
 
+// Acknowledges text messages received from a neighbor by their sequence numbers: all messages before
+// nextSequence are received (cumulative ack), and bit i of the selective ack means message
+// nextSequence + 1 + i is received too, so the sender resends only the gaps.
+// Selective bits are kept as they are sent, in BitSet.toByteArray() order. Received ack is a view of
+// the datagram buffer reused by the parser like TextMessage, so it's valid only while it's handled
 public class TextAckMessage implements Message {
-    private TextAckMessage(SocketAddress senderAddress, UUID uuid) {
-        this.uuid = uuid;
+    public static final int MAX_SELECTIVE_BYTES = 128;
+    public static final int MAX_SELECTIVE_BITS = MAX_SELECTIVE_BYTES * Byte.SIZE;
+
+    private TextAckMessage(SocketAddress senderAddress, long nextSequence, ByteBuffer selective, boolean view) {
         this.senderAddress = senderAddress;
+        this.nextSequence = nextSequence;
+        this.selective = selective;
+        this.view = view;
     }
 
+    // bits of received beyond MAX_SELECTIVE_BITS are left out
     public static @NotNull TextAckMessage newInstance(@NotNull SocketAddress senderAddress,
-                                                      @NotNull UUID uuid) {
-        return new TextAckMessage(senderAddress, uuid);
+                                                      long nextSequence,
+                                                      @NotNull BitSet received) {
+        BitSet selective = (received.length() > MAX_SELECTIVE_BITS) ? received.get(0, MAX_SELECTIVE_BITS) : received;
+        return new TextAckMessage(senderAddress, nextSequence, ByteBuffer.wrap(selective.toByteArray()), false);
+    }
+
+    // returns message which is pointed at received datagrams by wrap, it's unusable until then
+    public static @NotNull TextAckMessage newView() {
+        return new TextAckMessage(null, 0, null, true);
+    }
+
+    // points this view at selective bits from position to limit of buffer, there must be MAX_SELECTIVE_BYTES
+    // of them at most, and returns it. Message it viewed before is gone
+    public @NotNull TextAckMessage wrap(@NotNull SocketAddress senderAddress,
+                                        long nextSequence,
+                                        @NotNull ByteBuffer selective) {
+        if (!view) {
+            throw new IllegalStateException("Message isn't a view");
+        }
+        this.senderAddress = senderAddress;
+        this.nextSequence = nextSequence;
+        this.selective = selective;
+        return this;
     }
 
     @Override
@@ -22,8 +55,30 @@ public class TextAckMessage implements Message {
         return MessageType.TEXT_ACK;
     }
 
-    public @NotNull UUID getUuid() {
-        return uuid;
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    public boolean isReceived(long sequence) {
+        if (sequence < nextSequence) {
+            return true;
+        }
+        long bit = sequence - nextSequence - 1;
+        return bit >= 0 && bit < (long) selective.remaining() * Byte.SIZE
+                && 0 != (selective.get(selective.position() + (int) (bit / Byte.SIZE)) & (1 << (bit % Byte.SIZE)));
+    }
+
+    public int getSelectiveLength() {
+        return selective.remaining();
+    }
+
+    // puts selective bits into out at its position
+    public void writeSelective(@NotNull ByteBuffer out) {
+        if (selective.hasArray()) {
+            out.put(selective.array(), selective.arrayOffset() + selective.position(), selective.remaining());
+        } else {
+            out.put(selective.duplicate());
+        }
     }
 
     @Override
@@ -31,6 +86,9 @@ public class TextAckMessage implements Message {
         return senderAddress;
     }
 
-    private final SocketAddress senderAddress;
-    private final UUID uuid;
+    // fields of a view change with each datagram it's pointed at
+    private SocketAddress senderAddress;
+    private long nextSequence;
+    private ByteBuffer selective; // from position to limit
+    private final boolean view; // made by newView, reused by parser
 }
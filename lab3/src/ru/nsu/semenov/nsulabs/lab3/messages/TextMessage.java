@@ -3,24 +3,101 @@ package ru.nsu.semenov.nsulabs.lab3.messages;
 import org.jetbrains.annotations.NotNull;
 
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.UUID;
 
+// Text message keeps name and text encoded as they are sent: payload is
+//   name length (int), name (UTF-8), text length (int), text (UTF-8)
+// so forwarded and resent messages are copied as bytes, and strings are decoded only when asked for.
+// Received message is a view of the datagram buffer, which is reused after the message is handled,
+// so the message has to be retained to be kept longer. The view itself is reused by the parser for the
+// next datagram, and its UUID is made only when asked for, so parsing a text allocates nothing.
+// Sequence number orders messages sent to one neighbor, it's 0 until the message is addressed to one
 public final class TextMessage implements Message {
     private TextMessage(@NotNull SocketAddress senderAddress,
                         @NotNull UUID uuid,
-                        @NotNull String name,
-                        @NotNull String text) {
+                        long sequence,
+                        @NotNull ByteBuffer payload,
+                        boolean owned) {
         this.senderAddress = senderAddress;
         this.uuid = uuid;
-        this.name = name;
-        this.text = text;
+        this.uuidMost = uuid.getMostSignificantBits();
+        this.uuidLeast = uuid.getLeastSignificantBits();
+        this.sequence = sequence;
+        this.payload = payload;
+        this.owned = owned;
+        this.view = false;
+    }
+
+    private TextMessage() {
+        this.owned = false;
+        this.view = true;
     }
 
     public static @NotNull TextMessage newInstance(@NotNull SocketAddress senderAddress,
                                                    @NotNull UUID uuid,
                                                    @NotNull String name,
                                                    @NotNull String text) {
-        return new TextMessage(senderAddress, uuid, name, text);
+        byte[] encodedName = name.getBytes(StandardCharsets.UTF_8);
+        byte[] encodedText = text.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer payload = ByteBuffer.allocate(Integer.BYTES * 2 + encodedName.length + encodedText.length);
+        payload.putInt(encodedName.length);
+        payload.put(encodedName);
+        payload.putInt(encodedText.length);
+        payload.put(encodedText);
+        payload.flip();
+
+        TextMessage message = new TextMessage(senderAddress, uuid, 0, payload, true);
+        message.name = name;
+        message.text = text;
+        return message;
+    }
+
+    // returns message which is pointed at received datagrams by wrap, it's unusable until then
+    public static @NotNull TextMessage newView() {
+        return new TextMessage();
+    }
+
+    // points this view at payload from its position to limit, which must be validated already, and returns it.
+    // Message it viewed before is gone
+    public @NotNull TextMessage wrap(@NotNull SocketAddress senderAddress,
+                                     long uuidMost,
+                                     long uuidLeast,
+                                     long sequence,
+                                     @NotNull ByteBuffer payload) {
+        if (!view) {
+            throw new IllegalStateException("Message isn't a view");
+        }
+        this.senderAddress = senderAddress;
+        this.uuidMost = uuidMost;
+        this.uuidLeast = uuidLeast;
+        this.uuid = null;
+        this.sequence = sequence;
+        this.payload = payload;
+        this.name = null;
+        this.text = null;
+        return this;
+    }
+
+    // returns message with its own copy of payload, this one if it has it already
+    public @NotNull TextMessage retain() {
+        if (owned) {
+            return this;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+        copy.put(payload.duplicate());
+        copy.flip();
+        return new TextMessage(senderAddress, getUuid(), sequence, copy, true);
+    }
+
+    // returns the same message for another address and sequence number there, sharing payload
+    public @NotNull TextMessage withAddress(@NotNull SocketAddress address, long sequence) {
+        TextMessage message = new TextMessage(address, getUuid(), sequence, payload, owned);
+        message.name = name;
+        message.text = text;
+        return message;
     }
 
     @Override
@@ -29,24 +106,71 @@ public final class TextMessage implements Message {
     }
 
     public @NotNull UUID getUuid() {
+        if (null == uuid) {
+            uuid = new UUID(uuidMost, uuidLeast);
+        }
         return uuid;
     }
 
+    public long getSequence() {
+        return sequence;
+    }
+
     @Override
     public @NotNull SocketAddress getAddress() {
         return senderAddress;
     }
 
     public @NotNull String getText() {
+        if (null == text) {
+            int textPosition = payload.position() + Integer.BYTES + payload.getInt(payload.position())
+                    + Integer.BYTES;
+            text = decode(textPosition, payload.getInt(textPosition - Integer.BYTES));
+        }
         return text;
     }
 
     public @NotNull String getName() {
+        if (null == name) {
+            name = decode(payload.position() + Integer.BYTES, payload.getInt(payload.position()));
+        }
         return name;
     }
 
-    private final SocketAddress senderAddress;
-    private final UUID uuid;
-    private final String name;
-    private final String text;
+    public int getPayloadLength() {
+        return payload.remaining();
+    }
+
+    // puts payload into out at its position
+    public void writePayload(@NotNull ByteBuffer out) {
+        if (payload.hasArray()) {
+            out.put(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+        } else {
+            out.put(payload.duplicate());
+        }
+    }
+
+    private @NotNull String decode(int position, int length) {
+        if (payload.hasArray()) {
+            return new String(payload.array(), payload.arrayOffset() + position, length, StandardCharsets.UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer source = payload.duplicate();
+        source.position(position);
+        source.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // fields of a view change with each datagram it's pointed at
+    private SocketAddress senderAddress;
+    private long uuidMost;
+    private long uuidLeast;
+    private long sequence;
+    private ByteBuffer payload;
+    private final boolean owned; // payload isn't a view of datagram buffer
+    private final boolean view; // made by newView, reused by parser
+    // made lazily, racing threads make equal ones
+    private UUID uuid;
+    private String name;
+    private String text;
 }